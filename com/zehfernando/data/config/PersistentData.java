@@ -1,6 +1,7 @@
 package com.zehfernando.data.config;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -150,6 +151,10 @@ public class PersistentData {
 		editor.commit();
 	}
 
+	public Map<String, ?> getAll() {
+		return preferences.getAll();
+	}
+
 	public void remove(String __key) {
 		SharedPreferences.Editor editor = preferences.edit();
 		editor.remove(__key);
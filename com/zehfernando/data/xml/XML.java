@@ -63,29 +63,21 @@ public class XML {
 		this(new InputSource(__inputStream));
 	}
 
+	// XML xml = new XML(textLoader.getDataStream(), textLoader.getCharset());
+	public XML(InputStream __inputStream, String __charset) {
+		this();
+
+		// Unlike XML(InputSource), a null charset is left unset, so the parser uses the document's own declaration
+		parse(getInputSource(__inputStream, __charset));
+	}
+
 	// XML xml = new XML(new InputSource(getResources().openRawResource(R.xml.data_main_menu)));  (doesn't work?)
 	public XML(InputSource __inputSource) {
 		this();
 
-		__inputSource.setEncoding("UTF-8");
+		if (__inputSource.getEncoding() == null) __inputSource.setEncoding("UTF-8");
 
-		try {
-			SAXParserFactory spf = SAXParserFactory.newInstance();
-			SAXParser sp = spf.newSAXParser();
-			XMLReader xr = sp.getXMLReader();
-
-			xr.setContentHandler(new XMLParseHandler(this));
-			xr.setErrorHandler(new XMLErrorHandler());
-			xr.parse(__inputSource);
-
-			spf = null;
-			sp = null;
-			xr = null;
-			__inputSource = null;
-		} catch (Exception __e) {
-			Log.e("XML", "Error parsing the XML! " + __e + ": " + __e.getCause() + " / " + __e.getMessage());
-			__e.printStackTrace();
-		}
+		parse(__inputSource);
 	}
 
 	// XML xml = new XML(getResources().getXml(R.xml.data_main_menu));
@@ -123,6 +115,34 @@ public class XML {
 	// ================================================================================================================
 	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
 
+	private void parse(InputSource __inputSource) {
+		try {
+			SAXParserFactory spf = SAXParserFactory.newInstance();
+			SAXParser sp = spf.newSAXParser();
+			XMLReader xr = sp.getXMLReader();
+
+			xr.setContentHandler(new XMLParseHandler(this));
+			xr.setErrorHandler(new XMLErrorHandler());
+			xr.parse(__inputSource);
+
+			spf = null;
+			sp = null;
+			xr = null;
+			__inputSource = null;
+		} catch (Exception __e) {
+			Log.e("XML", "Error parsing the XML! " + __e + ": " + __e.getCause() + " / " + __e.getMessage());
+			__e.printStackTrace();
+		}
+	}
+
+	private static InputSource getInputSource(InputStream __inputStream, String __charset) {
+		// Bytes are decoded by the parser itself, with __charset (e.g. from an HTTP Content-Type), or if null, with the
+		// encoding declared by the document (UTF-8 if none)
+		InputSource inputSource = new InputSource(__inputStream);
+		if (__charset != null) inputSource.setEncoding(__charset);
+		return inputSource;
+	}
+
 	private void addTextChild(String __text) {
 		// Add a new text node
 		if (children == null) initializeChildren();
@@ -1,22 +1,28 @@
 package com.zehfernando.display.utils;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
 
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import com.zehfernando.net.cache.BitmapCache;
 import com.zehfernando.net.cache.FileCache;
+import com.zehfernando.net.cache.FileCacheEditor;
+import com.zehfernando.net.loaders.DownloadScheduler;
 import com.zehfernando.net.loaders.Loader;
 import com.zehfernando.net.loaders.Loader.OnLoaderLoadingCompleteListener;
 import com.zehfernando.net.loaders.Loader.OnLoaderLoadingErrorListener;
 import com.zehfernando.net.loaders.Loader.OnLoaderLoadingProgressListener;
 import com.zehfernando.net.loaders.Loader.OnLoaderLoadingStartListener;
+import com.zehfernando.net.loaders.RetryPolicy;
+import com.zehfernando.utils.DoLater;
+import com.zehfernando.utils.DoLater.DoLaterListener;
 import com.zehfernando.utils.F;
 
 public class ImageLoader {
@@ -24,24 +30,28 @@ public class ImageLoader {
 	// Loads an image into an ImageView asynchronously
 
 	// Constants
-	protected static final int MAX_TRIES = 2;
 	protected static final String LOCAL_PREFFIX = "file://";
 
 	// Static properties
 	protected static ArrayList<ImageLoader> loaders = new ArrayList<ImageLoader>();
+	protected static HashMap<String, SharedDownload> downloads = new HashMap<String, SharedDownload>();	// Downloads in progress, by key
+	protected static RetryPolicy retryPolicy = RetryPolicy.getDefaultPolicy();							// Used by new downloads
 
 	// Properties
 	protected ImageView imageView;
 	protected String uri;							// URL or file location
 	protected Boolean skipCache;
-	protected int triesLeft;
 	protected Boolean isLocal;
 	protected Boolean highPriority;					// If true, AND it's local, it loads it immediately instead of in a separate thread
 	protected String cacheName;
 	protected long expirationTime;					// Time to expire, in ms; if 0, never expires
+	protected int targetWidth;						// Size the image is decoded for, if known (0 otherwise)
+	protected int targetHeight;
+	protected String bitmapCacheKey;				// Key of the decoded image in the memory cache
+	protected int priority;							// One of the DownloadScheduler.PRIORITY_* constants
 
 	// Instances
-	protected Loader loader;
+	protected SharedDownload download;				// Download this is waiting for, shared with other loaders of the same image
 
 	private final HashMap<String, String> headers;
 
@@ -63,10 +73,13 @@ public class ImageLoader {
 		uri = __uri;
 		skipCache = __skipCache;
 		highPriority = __highPriority;
-		triesLeft = MAX_TRIES;
 		isLocal = __uri.indexOf("http://") != 0 && __uri.indexOf("https://") != 0;
 		cacheName = __cacheName;
 		expirationTime = __expirationTime;
+		targetWidth = getViewSize(__imageView.getWidth(), __imageView.getLayoutParams() == null ? 0 : __imageView.getLayoutParams().width);
+		targetHeight = getViewSize(__imageView.getHeight(), __imageView.getLayoutParams() == null ? 0 : __imageView.getLayoutParams().height);
+		bitmapCacheKey = BitmapCache.getKey(__uri, targetWidth, targetHeight);
+		priority = DownloadScheduler.PRIORITY_VISIBLE;
 		loaders.add(this);
 		headers = new HashMap<String, String>();
 
@@ -112,6 +125,23 @@ public class ImageLoader {
 		if (loader != null) destroyRemoteImageLoader(loader);
 	}
 
+	public static void setPriority(ImageView __imageView, int __priority) {
+		// Changes the priority of the image being loaded into __imageView, if it's still waiting to be downloaded
+		// E.g. use DownloadScheduler.PRIORITY_PREFETCH for views that scrolled out of the screen but may come back
+
+		ImageLoader loader = getRemoteImageLoader(__imageView);
+		if (loader != null) loader.setPriority(__priority);
+	}
+
+	public static void setRetryPolicy(RetryPolicy __retryPolicy) {
+		// Policy used to retry failed downloads; use null to never retry
+		retryPolicy = __retryPolicy;
+	}
+
+	public static RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
 	public FileCache getCache() {
 		// Returns the file cache used
 		return FileCache.getFileCache(imageView.getContext(), cacheName);
@@ -141,6 +171,13 @@ public class ImageLoader {
 		F.debug("Cleaned ImageLoader; Remaining image loaders: " + loaders.size());
 	}
 
+	protected static int getViewSize(int __measuredSize, int __layoutSize) {
+		// Size of a view if it's already laid out, or its fixed layout size otherwise; 0 if not known
+		if (__measuredSize > 0) return __measuredSize;
+		if (__layoutSize != ViewGroup.LayoutParams.MATCH_PARENT && __layoutSize != ViewGroup.LayoutParams.WRAP_CONTENT && __layoutSize > 0) return __layoutSize;
+		return 0;
+	}
+
 	// ================================================================================================================
 	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
 
@@ -154,7 +191,8 @@ public class ImageLoader {
 
 	protected void dispatchOnLoadingProgress() {
 		if (onLoadingProgressListener != null) {
-			if (loader != null) {
+			if (download != null && download.getLoader() != null) {
+				Loader loader = download.getLoader();
 				onLoadingProgressListener.onRemoteImageLoaderLoadingProgress(this, (float)loader.getLoadedBytes() / (float)loader.getTotalBytes());
 			} else {
 				onLoadingProgressListener.onRemoteImageLoaderLoadingProgress(this, 1);
@@ -166,6 +204,77 @@ public class ImageLoader {
 		if (onLoadingCompleteListener != null) onLoadingCompleteListener.onRemoteImageLoaderLoadingComplete(this);
 	}
 
+	protected int getSampleSize(BitmapFactory.Options __bounds) {
+		// Largest power of 2 that still decodes the image at or above the target size
+		int sampleSize = 1;
+		if (targetWidth > 0 && targetHeight > 0) {
+			while (__bounds.outWidth / (sampleSize * 2) >= targetWidth && __bounds.outHeight / (sampleSize * 2) >= targetHeight) sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	protected Bitmap decodeBitmap(byte[] __data) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		if (targetWidth > 0 && targetHeight > 0) {
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(__data, 0, __data.length, options);
+			options.inSampleSize = getSampleSize(options);
+			options.inJustDecodeBounds = false;
+		}
+		return BitmapFactory.decodeByteArray(__data, 0, __data.length, options);
+	}
+
+	protected Bitmap decodeBitmap(String __path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		if (targetWidth > 0 && targetHeight > 0) {
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(__path, options);
+			options.inSampleSize = getSampleSize(options);
+			options.inJustDecodeBounds = false;
+		}
+		return BitmapFactory.decodeFile(__path, options);
+	}
+
+	protected void setBitmap(Bitmap __bitmap) {
+		// Shows a decoded image, keeping it in the memory cache for the next time it's needed
+		if (!skipCache) BitmapCache.getBitmapCache().put(bitmapCacheKey, __bitmap);
+		imageView.setImageBitmap(__bitmap);
+	}
+
+	protected void onDownloadComplete(String __cachedPath, byte[] __data) {
+		// The shared download finished; __cachedPath is set if it's in the cache, __data if it was kept in memory
+		download = null;
+
+		// Another loader of the same download may have already decoded it at the same size
+		Bitmap bitmap = skipCache ? null : BitmapCache.getBitmapCache().get(bitmapCacheKey);
+		if (bitmap == null) {
+			if (__cachedPath != null) {
+				if (expirationTime > 0) getCache().setFileExpirationTimeRelativeToNow(uri, expirationTime);
+				bitmap = decodeBitmap(__cachedPath);
+			} else if (__data != null) {
+				bitmap = decodeBitmap(__data);
+			}
+		}
+
+		if (bitmap == null) {
+			// Not decodable, or streamed to the cache and removed from it before it could be decoded
+			F.error("--> Could not decode image [" + uri + "]");
+			onDownloadError();
+			return;
+		}
+		setBitmap(bitmap);
+
+		dispatchOnLoadingComplete();
+
+		destroyRemoteImageLoader(this);
+	}
+
+	protected void onDownloadError() {
+		download = null;
+		dispatchOnLoadingError();
+		destroyRemoteImageLoader(this);
+	}
+
 	// ================================================================================================================
 	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
 
@@ -174,14 +283,27 @@ public class ImageLoader {
 
 		// Returns true if already loaded
 
-		triesLeft--;
+		if (!skipCache) {
+			// Check if the image is already decoded in memory
+			Bitmap bitmap = BitmapCache.getBitmapCache().get(bitmapCacheKey);
+			if (bitmap != null) {
+				imageView.setImageBitmap(bitmap);
+				dispatchOnLoadingStart();
+				dispatchOnLoadingProgress();
+				dispatchOnLoadingComplete();
+
+				destroyRemoteImageLoader(this);
+				return true;
+			}
+		}
 
 		if (!skipCache && !isLocal) {
 			// Check if the image exists in the cache first
-			if (getCache().getFileExists(uri)) {
+			String cachedPath = getCache().getFilePathIfExists(uri);
+			if (cachedPath != null) {
 				// Already exists! Use cached image
 				//F.info("Image is already cached; used cached version");
-				uri = getCache().getFilePath(uri);
+				uri = cachedPath;
 				isLocal = true;
 				start();
 				return true;
@@ -195,75 +317,34 @@ public class ImageLoader {
 
 		if (isLocal && uri.indexOf(LOCAL_PREFFIX) != 0) uri = LOCAL_PREFFIX + uri;
 
-		loader = new Loader();
-
-		// Set headers
-		Iterator it = headers.entrySet().iterator();
-		while (it.hasNext()) {
-			Map.Entry pairs = (Map.Entry)it.next();
-			loader.addHeader(pairs.getKey().toString(), pairs.getValue().toString());
-			//it.remove();
+		// Joins a download of the same image that's already in progress, if any, instead of starting another one
+		FileCache cache = skipCache || isLocal ? null : getCache();
+		String downloadKey = SharedDownload.getKey(uri, headers, cache == null ? null : cacheName);
+		download = downloads.get(downloadKey);
+		if (download == null) {
+			download = new SharedDownload(downloadKey, uri, headers, cache);
+			downloads.put(downloadKey, download);
+			download.addWaiter(this);
+			download.start();
+		} else {
+			F.debug("Image [" + uri + "] is already being loaded; waiting for it");
+			download.addWaiter(this);
 		}
 
-		loader.setOnLoaderLoadingStartListener(new OnLoaderLoadingStartListener() {
-			@Override
-			public void onLoaderLoadingStart(Loader __loader) {
-				dispatchOnLoadingStart();
-			}
-		});
-		loader.setOnLoaderLoadingErrorListener(new OnLoaderLoadingErrorListener() {
-			@Override
-			public void onLoaderLoadingError(Loader __loader) {
-				if (triesLeft > 0) {
-					F.warn("Error loading image [" + uri + "] trying again (" + triesLeft + " tries left)");
-					stop();
-					start();
-				} else {
-					F.error("--> FINAL ERROR loading image");
-					dispatchOnLoadingError();
-					destroyRemoteImageLoader(ImageLoader.this);
-				}
-			}
-		});
-		loader.setOnLoaderLoadingProgressListener(new OnLoaderLoadingProgressListener() {
-			@Override
-			public void onLoaderLoadingProgress(Loader __loader, int __bytesLoaded, int __bytesTotal) {
-				dispatchOnLoadingProgress();
-			}
-		});
-		loader.setOnLoaderLoadingCompleteListener(new OnLoaderLoadingCompleteListener() {
-			@Override
-			public void onLoaderLoadingComplete(Loader __loader) {
-				// Loading complete
-				// Save the image to the cache if allowed
-				if (!skipCache && !isLocal) {
-					getCache().putFile(uri, __loader.getData());
-					if (expirationTime > 0) getCache().setFileExpirationTimeRelativeToNow(uri, expirationTime);
-				}
-
-				// Create a new bitmap from it
-				imageView.setImageBitmap(BitmapFactory.decodeByteArray(__loader.getData(), 0, __loader.getData().length));
-
-				dispatchOnLoadingComplete();
-
-				destroyRemoteImageLoader(ImageLoader.this);
-
-			}
-		});
-		loader.load(uri);
-
 		return false;
 	}
 
 	public void doHighPriorityLoad() {
 		// Immediate load when it's local (and is loaded), without using a separate thread
 		try {
-			imageView.setImageBitmap(BitmapFactory.decodeStream(new FileInputStream(new File(uri))));
-		} catch (FileNotFoundException e) {
-			F.error("File not found when trying to load local file with high priority: " + uri);
-			dispatchOnLoadingError();
-			destroyRemoteImageLoader(this);
-			return;
+			Bitmap bitmap = decodeBitmap(uri);
+			if (bitmap == null) {
+				F.error("File not found or not decodable when trying to load local file with high priority: " + uri);
+				dispatchOnLoadingError();
+				destroyRemoteImageLoader(this);
+				return;
+			}
+			setBitmap(bitmap);
 		} catch (OutOfMemoryError e) {
 			F.error("Out of memory trying to load image: " + uri);
 			dispatchOnLoadingError();
@@ -279,10 +360,10 @@ public class ImageLoader {
 	}
 
 	public void stop() {
-		// Stops loading
-		if (loader != null) {
-			loader.cancel();
-			loader = null;
+		// Stops loading; the download itself is only cancelled if no other loader is waiting for it
+		if (download != null) {
+			download.removeWaiter(this);
+			download = null;
 		}
 	}
 
@@ -305,6 +386,16 @@ public class ImageLoader {
 	// ================================================================================================================
 	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
 
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int __priority) {
+		// Shared downloads use the highest priority of all the loaders waiting for them
+		priority = __priority;
+		if (download != null) download.updatePriority();
+	}
+
 	public ImageView getImageView() {
 		return imageView;
 	}
@@ -331,4 +422,205 @@ public class ImageLoader {
 	public interface OnRemoteImageLoaderLoadingCompleteListener {
 		public void onRemoteImageLoaderLoadingComplete(ImageLoader __loader);
 	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	protected static class SharedDownload {
+
+		// Download of an image for all the ImageLoaders waiting for it; it's only cancelled once all of them are stopped
+
+		private final String key;
+		private final String uri;
+		private final HashMap<String, String> headers;
+		private final FileCache cache;					// If not null, the image is streamed to this cache
+		private final ArrayList<ImageLoader> waiters;
+		private final RetryPolicy retryPolicy;
+
+		private Loader loader;
+		private FileCacheEditor cacheEditor;			// Writes downloaded bytes straight to the cache
+		private DoLater queuedRetry;					// Next attempt, while waiting for it
+		private int attempts;
+		private boolean hasStarted;
+
+		public SharedDownload(String __key, String __uri, HashMap<String, String> __headers, FileCache __cache) {
+			key = __key;
+			uri = __uri;
+			headers = __headers;
+			cache = __cache;
+			waiters = new ArrayList<ImageLoader>();
+			retryPolicy = ImageLoader.retryPolicy;
+			attempts = 0;
+			hasStarted = false;
+		}
+
+		public static String getKey(String __uri, HashMap<String, String> __headers, String __cacheName) {
+			// Downloads are only shared by loaders of the same URL, with the same headers, saving to the same cache (if any)
+			StringBuilder key = new StringBuilder(__uri);
+			key.append("\n").append(__cacheName);
+			for (Map.Entry<String, String> header:new TreeMap<String, String>(__headers).entrySet()) {
+				key.append("\n").append(header.getKey()).append(": ").append(header.getValue());
+			}
+			return key.toString();
+		}
+
+		public void addWaiter(ImageLoader __imageLoader) {
+			waiters.add(__imageLoader);
+			updatePriority();
+
+			// Catches up with what the other loaders were already told
+			if (hasStarted) {
+				__imageLoader.dispatchOnLoadingStart();
+				__imageLoader.dispatchOnLoadingProgress();
+			}
+		}
+
+		public void removeWaiter(ImageLoader __imageLoader) {
+			waiters.remove(__imageLoader);
+			if (waiters.size() == 0 && downloads.get(key) == this) {
+				F.debug("No more loaders waiting for image [" + uri + "]; cancelling its download");
+				cancel();
+				downloads.remove(key);
+			} else {
+				updatePriority();
+			}
+		}
+
+		public void updatePriority() {
+			if (loader != null) loader.setPriority(getPriority());
+		}
+
+		public int getPriority() {
+			// Highest priority (lowest value) of the loaders waiting
+			int priority = DownloadScheduler.PRIORITY_BACKGROUND;
+			for (ImageLoader waiter:waiters) priority = Math.min(priority, waiter.getPriority());
+			return priority;
+		}
+
+		public void start() {
+			attempts++;
+			hasStarted = false;
+
+			loader = new Loader();
+			loader.setPriority(getPriority());
+
+			if (cache != null) {
+				// A retry only downloads what the failed attempt didn't get
+				loader.setResumeCache(cache);
+
+				// Stream the image straight to the cache instead of keeping it in memory
+				cacheEditor = cache.edit(uri);
+				if (cacheEditor.getOutputStream() != null) {
+					loader.setOutputStream(cacheEditor.getOutputStream());
+					loader.setKeepsData(false);
+				} else {
+					cacheEditor.abort();
+					cacheEditor = null;
+				}
+			}
+
+			// Set headers
+			Iterator it = headers.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry pairs = (Map.Entry)it.next();
+				loader.addHeader(pairs.getKey().toString(), pairs.getValue().toString());
+			}
+
+			loader.setOnLoaderLoadingStartListener(new OnLoaderLoadingStartListener() {
+				@Override
+				public void onLoaderLoadingStart(Loader __loader) {
+					hasStarted = true;
+					for (ImageLoader waiter:new ArrayList<ImageLoader>(waiters)) waiter.dispatchOnLoadingStart();
+				}
+			});
+			loader.setOnLoaderLoadingErrorListener(new OnLoaderLoadingErrorListener() {
+				@Override
+				public void onLoaderLoadingError(Loader __loader) {
+					int status = __loader.getResponseCode();
+					if (retryPolicy != null && retryPolicy.getShouldRetry(attempts, status, true)) {
+						long delay = retryPolicy.getDelay(attempts);
+						F.warn("Error loading image [" + uri + "] (status " + status + "); trying again in " + delay + "ms");
+						cancel();
+						queuedRetry = new DoLater(delay, new DoLaterListener() {
+							@Override
+							public void doThis() {
+								queuedRetry = null;
+								start();
+							}
+						});
+					} else {
+						F.error("--> FINAL ERROR loading image");
+						cancel();
+						dispatchOnError();
+					}
+				}
+			});
+			loader.setOnLoaderLoadingProgressListener(new OnLoaderLoadingProgressListener() {
+				@Override
+				public void onLoaderLoadingProgress(Loader __loader, int __bytesLoaded, int __bytesTotal) {
+					for (ImageLoader waiter:new ArrayList<ImageLoader>(waiters)) waiter.dispatchOnLoadingProgress();
+				}
+			});
+			loader.setOnLoaderLoadingCompleteListener(new OnLoaderLoadingCompleteListener() {
+				@Override
+				public void onLoaderLoadingComplete(Loader __loader) {
+					// Loading complete
+					String cachedPath = null;
+					if (cacheEditor != null) {
+						// Already saved to the cache; bitmaps are created from the cached file
+						boolean isCommitted = cacheEditor.commit();
+						cacheEditor = null;
+
+						if (!isCommitted) {
+							F.error("--> Could not save image [" + uri + "] to the cache");
+							dispatchOnError();
+							return;
+						}
+
+						// Resolved after committing, since the content may be stored in a shared blob instead of the file's
+						// own path, or already trimmed from the cache (then null)
+						cachedPath = cache.getFilePathIfExists(uri);
+					}
+
+					downloads.remove(key);
+					ArrayList<ImageLoader> finishedWaiters = new ArrayList<ImageLoader>(waiters);
+					waiters.clear();
+					for (ImageLoader waiter:finishedWaiters) waiter.onDownloadComplete(cachedPath, __loader.getData());
+				}
+			});
+			loader.load(uri);
+		}
+
+		private void cancel() {
+			if (queuedRetry != null) {
+				queuedRetry.stop();
+				queuedRetry = null;
+			}
+
+			if (loader != null) {
+				loader.cancel();
+				loader = null;
+			}
+
+			if (cacheEditor != null) {
+				cacheEditor.abort();
+				cacheEditor = null;
+			}
+		}
+
+		private void dispatchOnError() {
+			downloads.remove(key);
+			ArrayList<ImageLoader> failedWaiters = new ArrayList<ImageLoader>(waiters);
+			waiters.clear();
+			for (ImageLoader waiter:failedWaiters) waiter.onDownloadError();
+		}
+
+		public Loader getLoader() {
+			return loader;
+		}
+
+		public int getNumWaiters() {
+			return waiters.size();
+		}
+	}
 }
@@ -1,6 +1,7 @@
 package com.zehfernando.display.widgets;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -9,6 +10,7 @@ import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 import android.widget.ProgressBar;
 
+import com.zehfernando.net.cache.BitmapCache;
 import com.zehfernando.net.cache.FileCache;
 import com.zehfernando.net.loaders.Loader;
 import com.zehfernando.net.loaders.Loader.OnLoaderLoadingCompleteListener;
@@ -104,6 +106,18 @@ public class RemoteImageView extends ViewGroup {
 		}
 	}
 
+	protected String getBitmapCacheKey() {
+		// Images are always decoded at their full size, so the key doesn't depend on the size of the view (which is not
+		// known yet when loading starts before layout)
+		return BitmapCache.getKey(imageURL, 0, 0);
+	}
+
+	protected void setCachedBitmap(Bitmap __bitmap) {
+		// Shows a decoded image, keeping it in the memory cache for the next time it's needed
+		if (useCache) BitmapCache.getBitmapCache().put(getBitmapCacheKey(), __bitmap);
+		image.setImageBitmap(__bitmap);
+	}
+
 	protected void removeProgressBar() {
 		if (progressBar != null) {
 			removeView(progressBar);
@@ -133,10 +147,18 @@ public class RemoteImageView extends ViewGroup {
 		useCache = __useCache;
 
 		if (__useCache) {
+			// Check if the image is already decoded in memory
+			Bitmap bitmap = BitmapCache.getBitmapCache().get(getBitmapCacheKey());
+			if (bitmap != null) {
+				image.setImageBitmap(bitmap);
+				return;
+			}
+
 			// Check if the image exists in the cache first
-			if (getFileCache().getFileExists(imageURL)) {
+			String cachedPath = getFileCache().getFilePathIfExists(imageURL);
+			if (cachedPath != null) {
 				// Already exists! Use cached image
-				image.setImageBitmap(BitmapFactory.decodeStream(getFileCache().getFile(imageURL)));
+				setCachedBitmap(BitmapFactory.decodeFile(cachedPath));
 				return;
 			}
 		}
@@ -159,7 +181,7 @@ public class RemoteImageView extends ViewGroup {
 				if (useCache) getFileCache().putFile(imageURL, __loader.getData());
 
 				// Create a new bitmap from it
-				image.setImageBitmap(BitmapFactory.decodeByteArray(__loader.getData(), 0, __loader.getData().length));
+				setCachedBitmap(BitmapFactory.decodeByteArray(__loader.getData(), 0, __loader.getData().length));
 
 				removeProgressBar();
 				removeLoader();
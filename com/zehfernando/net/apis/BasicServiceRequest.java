@@ -1,6 +1,6 @@
 package com.zehfernando.net.apis;
 
-import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
@@ -10,12 +10,18 @@ import java.util.HashMap;
 import android.text.Editable;
 import android.util.Log;
 
+import com.zehfernando.net.cache.FileCache;
+import com.zehfernando.net.loaders.MultipartContent;
+import com.zehfernando.net.loaders.RetryPolicy;
 import com.zehfernando.net.loaders.TextLoader;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderCompleteListener;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderErrorListener;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderProgressListener;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderStartListener;
+import com.zehfernando.net.loaders.TextLoader.OnTextLoaderUploadProgressListener;
 import com.zehfernando.net.loaders.TextLoader.RequestContentStreamWriter;
+import com.zehfernando.utils.DoLater;
+import com.zehfernando.utils.DoLater.DoLaterListener;
 import com.zehfernando.utils.F;
 
 public class BasicServiceRequest implements RequestContentStreamWriter {
@@ -26,8 +32,6 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 
 	protected static final String MULTIPART_BOUNDARY = "---------------------------7da843b2a1b04";
 
-	protected static final int    TIMES_TO_RETRY = 2;
-
 	// Enums
 	protected static final String CONTENT_TYPE_APPLICATION_X_WWW_FORM_URLENCODED = "application/x-www-form-urlencoded";
 	protected static final String CONTENT_TYPE_MULTIPART_FORM_DATA = "multipart/form-data; boundary=" + MULTIPART_BOUNDARY;
@@ -42,15 +46,23 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 	protected boolean isLoaded;
 
 	protected int timesRetried;
+	protected RetryPolicy retryPolicy;				// Decides whether (and when) failed requests are sent again
+	protected DoLater queuedRetry;					// Next attempt, while waiting for it
 
 	protected HashMap<String, String> requestParameters;
 	protected HashMap<String, InputStream> requestAttachments;
 	protected HashMap<String, String> requestAttachmentsNames;
+	protected HashMap<String, String> requestAttachmentsContentTypes;	// Guessed from the name if not set
+	protected HashMap<String, Long> requestAttachmentsLengths;			// -1 (or not set) if not known
+	protected MultipartContent multipartContent;						// Content of the current multipart request
 
 //			protected var urlRequest:URLRequest;
 	protected String requestMethod;
 	protected String requestContentType;
 
+	protected FileCache responseCache;				// If set, GET responses are cached and revalidated instead of downloaded again
+	protected long responseCacheMaxAge;				// Time cached responses are used without revalidating, in ms
+
 	// ================================================================================================================
 	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
 
@@ -63,8 +75,16 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 		requestParameters = new HashMap<String, String>();
 		requestAttachments = new HashMap<String, InputStream>();
 		requestAttachmentsNames = new HashMap<String, String>();
+		requestAttachmentsContentTypes = new HashMap<String, String>();
+		requestAttachmentsLengths = new HashMap<String, Long>();
+		multipartContent = null;
 
 		timesRetried = 0;
+		retryPolicy = RetryPolicy.getDefaultPolicy();
+		queuedRetry = null;
+
+		responseCache = null;
+		responseCacheMaxAge = 0;
 
 //		requestMethod = URLRequestMethod.GET;
 //		requestContentType = "application/x-www-form-urlencoded"; // Default
@@ -101,21 +121,65 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 		requestParameters = null;
 		requestAttachments = null;
 		requestAttachmentsNames = null;
+		requestAttachmentsContentTypes = null;
+		requestAttachmentsLengths = null;
+		multipartContent = null;
 	}
 
 	protected void stopLoading() {
 		// Stop loading everything
 		if (isLoading) {
-			loader.cancel();
+			stopRetrying();
+			if (loader != null) {
+				loader.cancel();
+				removeLoader();
+			}
 			isLoading = false;
-			removeLoader();
 		}
 	}
 
+	protected void stopRetrying() {
+		if (queuedRetry != null) {
+			queuedRetry.stop();
+			queuedRetry = null;
+		}
+	}
+
+	protected boolean retry(int __status) {
+		// Sends the request again after a while, if the retry policy allows it; returns false otherwise
+		timesRetried++;
+		if (retryPolicy == null || !getCanBeResent() || !retryPolicy.getShouldRetry(timesRetried, __status, getIsIdempotent())) return false;
+
+		long delay = retryPolicy.getDelay(timesRetried);
+		F.warn("Error loading the service (status " + __status + ")! Retrying in " + delay + "ms...");
+
+		// The loader is replaced; the request is still loading while it waits
+		removeLoader();
+
+		queuedRetry = new DoLater(delay, new DoLaterListener() {
+			@Override
+			public void doThis() {
+				queuedRetry = null;
+				load();
+			}
+		});
+		return true;
+	}
+
+	protected boolean getCanBeResent() {
+		// Attachments are streamed (and closed) by the first attempt, so requests with any can't be sent again
+		if (!CONTENT_TYPE_MULTIPART_FORM_DATA.equals(requestContentType) || requestAttachments == null) return true;
+		for (InputStream attachment:requestAttachments.values()) {
+			if (attachment != null) return false;
+		}
+		return true;
+	}
+
 	protected void removeLoader() {
 		loader.setOnLoadingErrorListener(null);
 		loader.setOnLoadingStartListener(null);
 		loader.setOnLoadingProgressListener(null);
+		loader.setOnUploadProgressListener(null);
 		loader.setLoadingCompleteListener(null);
 		loader = null;
 	}
@@ -163,6 +227,12 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 		// Set the headers of the loader here
 	}
 
+	protected boolean getIsIdempotent() {
+		// Whether sending this request more than once has the same effect as sending it once; requests that aren't are
+		// not retried. Services that read data with POST should return true
+		return RetryPolicy.getIsIdempotent(requestMethod);
+	}
+
 	protected String getRequestContent() {
 		// Iterate through the parameters hashmap and generate the content
 
@@ -195,104 +265,56 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 		return content;
 	}
 
-	@Override
-	public void writeToStream(OutputStream __stream) {
-
-		String lineEnd = "\r\n";
-		String twoHyphens = "--";
-		String boundary = MULTIPART_BOUNDARY;
-
-		F.log("Writing content to stream!");
-
-		try {
-			DataOutputStream writer = new DataOutputStream(__stream);
-
-			// http://reecon.wordpress.com/2010/04/25/uploading-files-to-http-server-using-post-android-sdk/
-
-			// Normal fields
-			for (String key:requestParameters.keySet()) {
-				F.log("--> Writing field: " + key + " as " + requestParameters.get(key));
-
-				writer.writeBytes(twoHyphens + boundary + lineEnd);
-				writer.writeBytes("Content-Disposition: form-data; name=\"" + key + "\"" + lineEnd);
-				writer.writeBytes(lineEnd);
-				writer.writeBytes(requestParameters.get(key) + lineEnd);
-			}
-
-			// Files
-			InputStream inputStream;
-			int bytesAvailable, bufferSize, bytesRead;
-			byte[] buffer;
-			int maxBufferSize = 1*1024*1024;
-
-			for (String key:requestAttachments.keySet()) {
-
-				if (requestAttachments.get(key) == null) {
-					F.log("--> Skipping file: " + key + " as " + requestAttachmentsNames.get(key));
-					continue;
-				}
-
-				inputStream = requestAttachments.get(key);
-
-				F.log("--> Writing file: " + key + " as " + requestAttachmentsNames.get(key) + " (" + inputStream.available() + " bytes)");
-
-				writer.writeBytes(twoHyphens + boundary + lineEnd);
-				writer.writeBytes("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + requestAttachmentsNames.get(key) + "\"" + lineEnd);
-				writer.writeBytes("Content-Type: image/pjpeg" + lineEnd);
-				writer.writeBytes(lineEnd);
-
-				bytesAvailable = inputStream.available();
-				bufferSize = Math.min(bytesAvailable, maxBufferSize);
-				buffer = new byte[bufferSize];
-
-				// Read file
-				bytesRead = inputStream.read(buffer, 0, bufferSize);
+	protected MultipartContent getMultipartContent() {
+		// Content of multipart requests: all parameters, then all attachments (except empty ones)
+		MultipartContent content = new MultipartContent(MULTIPART_BOUNDARY);
 
-				while (bytesRead > 0) {
-					writer.write(buffer, 0, bufferSize);
-					bytesAvailable = inputStream.available();
-					bufferSize = Math.min(bytesAvailable, maxBufferSize);
-					bytesRead = inputStream.read(buffer, 0, bufferSize);
-				}
-
-				writer.writeBytes(lineEnd);
-
-				inputStream.close();
-				inputStream = null;
+		for (String key:requestParameters.keySet()) {
+			content.addField(key, requestParameters.get(key));
+		}
 
-				// Responses from the server (code and message)
-				//serverResponseCode = connection.getResponseCode();
-				//serverResponseMessage = connection.getResponseMessage();
+		for (String key:requestAttachments.keySet()) {
+			if (requestAttachments.get(key) == null) {
+				F.log("--> Skipping file: " + key + " as " + requestAttachmentsNames.get(key));
+				continue;
 			}
 
-			writer.writeBytes(twoHyphens + boundary + lineEnd);
-
-			writer.flush();
-			writer.close();
-			writer = null;
-
-		} catch (Exception __e) {
-			Log.e("BasicServiceRequest", "Exception when trying to upload file! " + __e);
+			Long length = requestAttachmentsLengths.get(key);
+			content.addFile(key, requestAttachmentsNames.get(key), requestAttachmentsContentTypes.get(key), requestAttachments.get(key), length == null ? -1 : length);
 		}
 
+		return content;
+	}
 
+	@Override
+	public long getContentLength() {
+		return multipartContent == null ? -1 : multipartContent.getContentLength();
+	}
+
+	@Override
+	public void writeToStream(OutputStream __stream) throws IOException {
+		// Streams the multipart content (files are not kept in memory); called on the loading thread
+		if (multipartContent != null) multipartContent.writeToStream(__stream);
 	}
 
 	// ================================================================================================================
 	// EVENT INTERFACE ------------------------------------------------------------------------------------------------
 
 	private void onServiceLoadingErrorInternal() {
-		if (timesRetried < TIMES_TO_RETRY) {
-			// Error loading; try again
-			F.warn("Error loading the service! Retrying...");
-			timesRetried++;
-			execute();
-		} else {
-			F.error("Too many errors loading the service! Giving up.");
+		// Error loading; try again if possible
+		if (!retry(loader.getResponseCode())) {
+			F.error("Could not load the service after " + timesRetried + " attempt(s)! Giving up.");
 			onServiceLoadingError();
 		}
 	}
 
+	private void onServiceLoadingCompleteInternal() {
+		// Server errors (e.g. 503) still have a response, but they may work if tried again
+		int status = loader.getResponseCode();
+		if (status >= 400 && retry(status)) return;
+		onServiceLoadingComplete();
+	}
+
 	protected void onServiceLoadingError() {
 		rawResponse = loader.getData();
 
@@ -309,6 +331,10 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 	protected void onServiceLoadingProgress() {
 	}
 
+	protected void onServiceUploadProgress() {
+		// Request content is being sent; see getUploadedBytes()
+	}
+
 	protected void onServiceLoadingComplete() {
 		rawResponse = loader.getData();
 
@@ -322,6 +348,13 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
 
 	public void execute() {
+		if (isLoading) stopLoading();
+		timesRetried = 0;
+		load();
+	}
+
+	protected void load() {
+		// Sends the request; also used for retries
 
 		if (isLoading) stopLoading();
 		if (isLoaded) clearResponseData();
@@ -337,9 +370,12 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 			loader.setRequestContent(requestContent);
 		} else {
 			//F.log("Setting request content as a STREAM WRITER");
+			multipartContent = getMultipartContent();
 			loader.setRequestContentStreamWriter(this);
 		}
 		loader.setContentType(requestContentType);
+		loader.setFileCache(responseCache);
+		loader.setCacheMaxAge(responseCacheMaxAge);
 
 		loader.setOnLoadingErrorListener(new OnTextLoaderErrorListener() {
 			@Override
@@ -359,10 +395,16 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 				onServiceLoadingProgress();
 			}
 		});
+		loader.setOnUploadProgressListener(new OnTextLoaderUploadProgressListener() {
+			@Override
+			public void onUploadProgress(TextLoader __loader, int __uploadedBytes, int __totalBytes) {
+				onServiceUploadProgress();
+			}
+		});
 		loader.setLoadingCompleteListener(new OnTextLoaderCompleteListener() {
 			@Override
 			public void onComplete(TextLoader __loader) {
-				onServiceLoadingComplete();
+				onServiceLoadingCompleteInternal();
 			}
 		});
 
@@ -413,8 +455,22 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 	}
 
 	public void setAttachment(String __key, String __filename, InputStream __inputStream) {
+		setAttachment(__key, __filename, __inputStream, null, -1);
+	}
+
+	public void setAttachment(String __key, String __filename, InputStream __inputStream, String __contentType) {
+		setAttachment(__key, __filename, __inputStream, __contentType, -1);
+	}
+
+	public void setAttachment(String __key, String __filename, InputStream __inputStream, String __contentType, long __length) {
+		// Adds a file to multipart requests; its content is streamed from __inputStream (and closed) when it's sent, so
+		// requests with attachments are never retried
+		// __contentType is guessed from __filename if null. If __length is -1, it's read from file and byte array streams;
+		// the request is sent in chunks when the length of any file is not known
 		requestAttachments.put(__key, __inputStream);
 		requestAttachmentsNames.put(__key, __filename);
+		requestAttachmentsContentTypes.put(__key, __contentType);
+		requestAttachmentsLengths.put(__key, __length);
 
 		// getContentResolver().openInputStream(Uri.parse(parameterImageUri)));
 	}
@@ -423,6 +479,32 @@ public class BasicServiceRequest implements RequestContentStreamWriter {
 //		return urlRequest.data;
 //	}
 
+	public void setResponseCache(FileCache __cache, long __maxAge) {
+		// Caches GET responses in __cache; they're used without asking the server for __maxAge ms (or the Cache-Control
+		// max-age sent by the server), and then revalidated with conditional requests. Use null to disable
+		responseCache = __cache;
+		responseCacheMaxAge = __maxAge;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public void setRetryPolicy(RetryPolicy __retryPolicy) {
+		// Policy used to retry failed requests; use null to never retry
+		retryPolicy = __retryPolicy;
+	}
+
+	public int getUploadedBytes() {
+		// Bytes of the request content sent so far
+		return loader == null ? 0 : loader.getUploadedBytes();
+	}
+
+	public int getUploadTotalBytes() {
+		// Size of the request content, or -1 if not known
+		return loader == null ? -1 : loader.getUploadTotalBytes();
+	}
+
 	public boolean getIsLoading() {
 		return isLoading;
 	}
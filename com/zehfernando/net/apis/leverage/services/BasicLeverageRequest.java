@@ -3,6 +3,7 @@ package com.zehfernando.net.apis.leverage.services;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import android.util.Log;
 
@@ -23,6 +24,9 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 
 	public static final String PARAMETER_SORT = "sort";
 
+	// Methods that don't change any data, so they can be sent again safely if they fail
+	protected static final List<String> RESENDABLE_METHODS = Arrays.asList("Authentication.Login", "GroupDiscussionMessages.GetAll", "GroupDiscussions.GetAll", "Groups.GetAll", "News.Get");
+
 	// Results
 	protected String errorMessage;
 
@@ -37,6 +41,7 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 	protected OnServiceLoadingError onServiceLoadingErrorListener;
 	protected OnServiceLoadingStart onServiceLoadingStartListener;
 	protected OnServiceLoadingProgress onServiceLoadingProgressListener;
+	protected OnServiceUploadProgress onServiceUploadProgressListener;
 	protected OnServiceLoadingComplete onServiceLoadingCompleteListener;
 
 	// ================================================================================================================
@@ -104,6 +109,7 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 		setOnServiceLoadingErrorListener(null);
 		setOnServiceLoadingStartListener(null);
 		setOnServiceLoadingProgressListener(null);
+		setOnServiceUploadProgressListener(null);
 		setOnServiceLoadingCompleteListener(null);
 		super.dispose();
 	}
@@ -123,6 +129,10 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 		onServiceLoadingProgressListener = __listener;
 	}
 
+	public void setOnServiceUploadProgressListener(OnServiceUploadProgress __listener) {
+		onServiceUploadProgressListener = __listener;
+	}
+
 	public void setOnServiceLoadingCompleteListener(OnServiceLoadingComplete __listener) {
 		onServiceLoadingCompleteListener = __listener;
 	}
@@ -139,6 +149,10 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 		public void onServiceLoadingProgress(BasicLeverageRequest __request);
 	}
 
+	public interface OnServiceUploadProgress {
+		public void onServiceUploadProgress(BasicLeverageRequest __request);
+	}
+
 	public interface OnServiceLoadingComplete {
 		public void onServiceLoadingComplete(BasicLeverageRequest __request);
 	}
@@ -155,6 +169,10 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 		if (onServiceLoadingProgressListener != null) onServiceLoadingProgressListener.onServiceLoadingProgress(this);
 	}
 
+	public void dispatchOnServiceUploadProgress() {
+		if (onServiceUploadProgressListener != null) onServiceUploadProgressListener.onServiceUploadProgress(this);
+	}
+
 	public void dispatchOnServiceLoadingComplete() {
 		if (onServiceLoadingCompleteListener != null) onServiceLoadingCompleteListener.onServiceLoadingComplete(this);
 	}
@@ -162,6 +180,13 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 	// ================================================================================================================
 	// EXTENDABLE INTERFACE -------------------------------------------------------------------------------------------
 
+	@Override
+	protected boolean getIsIdempotent() {
+		// All methods are sent with POST, but the ones in RESENDABLE_METHODS can be sent again safely; the others (e.g.
+		// Ratings.Add) could be applied twice. Requests for other read-only methods can override this to return true
+		return RESENDABLE_METHODS.contains(getParameter(PARAMETER_METHOD));
+	}
+
 //	@Override
 //	protected String getRequestContent() {
 //		// Iterate through the parameters hashmap and generate the content
@@ -205,6 +230,12 @@ public class BasicLeverageRequest extends BasicServiceRequest {
 		dispatchOnServiceLoadingProgress();
 	};
 
+	@Override
+	protected void onServiceUploadProgress() {
+		super.onServiceUploadProgress();
+		dispatchOnServiceUploadProgress();
+	};
+
 	@Override
 	protected void onServiceLoadingComplete() {
 		super.onServiceLoadingComplete();
@@ -0,0 +1,161 @@
+package com.zehfernando.net.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Bitmap;
+
+import com.zehfernando.utils.F;
+
+public class BitmapCache {
+
+	/*
+	In-memory cache of decoded bitmaps, kept in front of a FileCache so images that were decoded a moment ago (e.g. in
+	an adjacent list row) don't need to be read and decoded from the disk again. Bitmaps are keyed by their URL and the
+	size they were decoded for, and the least recently used ones are dropped once the byte budget is exceeded.
+
+	Usage:
+
+		String key = BitmapCache.getKey(url, width, height);
+		Bitmap bitmap = BitmapCache.getBitmapCache().get(key);
+		if (bitmap == null) {
+			bitmap = (decode...);
+			BitmapCache.getBitmapCache().put(key, bitmap);
+		}
+
+	Evicted bitmaps are never recycled, since they may still be displayed somewhere.
+	*/
+
+	// Constants
+	protected static final float DEFAULT_HEAP_FRACTION = 0.125f;		// Default budget, as a fraction of the max heap size
+
+	// Static properties
+	private static BitmapCache bitmapCache;
+
+	// Properties
+	private final LinkedHashMap<String, Entry> bitmaps;				// Bitmaps by key, least recently used first
+	private long maxSize;												// Maximum size of all bitmaps, in bytes
+	private long totalSize;												// Current size of all bitmaps, in bytes
+
+	// ================================================================================================================
+	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public static synchronized BitmapCache getBitmapCache() {
+		// Shared instance, used by ImageLoader and RemoteImageView
+		if (bitmapCache == null) bitmapCache = new BitmapCache(getMaxSizeForHeapFraction(DEFAULT_HEAP_FRACTION));
+		return bitmapCache;
+	}
+
+	public static long getMaxSizeForHeapFraction(float __fraction) {
+		return (long)(Runtime.getRuntime().maxMemory() * __fraction);
+	}
+
+	public static String getKey(String __url, int __width, int __height) {
+		// Key for a bitmap decoded from __url for a target size; use 0 when the size is not known
+		return __width + "x" + __height + ":" + __url;
+	}
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public BitmapCache(long __maxSize) {
+		bitmaps = new LinkedHashMap<String, Entry>(32, 0.75f, true);
+		maxSize = __maxSize;
+		totalSize = 0;
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private static long getBitmapSize(Bitmap __bitmap) {
+		return (long)__bitmap.getRowBytes() * __bitmap.getHeight();
+	}
+
+	private void trimToSize(long __maxSize) {
+		Entry entry;
+		Iterator<Entry> iterator = bitmaps.values().iterator();
+		while (totalSize > __maxSize && iterator.hasNext()) {
+			entry = iterator.next();
+			iterator.remove();
+			totalSize -= entry.size;
+		}
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public synchronized Bitmap get(String __key) {
+		Entry entry = bitmaps.get(__key);
+		if (entry == null) return null;
+
+		if (entry.bitmap.isRecycled()) {
+			// Recycled by someone else, can't be used anymore
+			bitmaps.remove(__key);
+			totalSize -= entry.size;
+			return null;
+		}
+		return entry.bitmap;
+	}
+
+	public synchronized void put(String __key, Bitmap __bitmap) {
+		if (__bitmap == null) return;
+
+		long size = getBitmapSize(__bitmap);
+		if (size > maxSize) {
+			F.debug("Bitmap [" + __key + "] is too big for the cache (" + size + " bytes), ignoring");
+			return;
+		}
+
+		Entry oldEntry = bitmaps.put(__key, new Entry(__bitmap, size));
+		if (oldEntry != null) totalSize -= oldEntry.size;
+		totalSize += size;
+
+		trimToSize(maxSize);
+	}
+
+	public synchronized void remove(String __key) {
+		Entry oldEntry = bitmaps.remove(__key);
+		if (oldEntry != null) totalSize -= oldEntry.size;
+	}
+
+	public synchronized void clear() {
+		bitmaps.clear();
+		totalSize = 0;
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int getNumBitmaps() {
+		return bitmaps.size();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(long __maxSize) {
+		maxSize = __maxSize;
+		trimToSize(maxSize);
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class Entry {
+
+		// A bitmap with the size it was counted with when added, since recycled bitmaps don't report it anymore
+
+		public final Bitmap bitmap;
+		public final long size;
+
+		public Entry(Bitmap __bitmap, long __size) {
+			bitmap = __bitmap;
+			size = __size;
+		}
+	}
+}
@@ -1,15 +1,34 @@
 package com.zehfernando.net.cache;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -22,20 +41,63 @@ import com.zehfernando.utils.StringUtils;
 
 public class FileCache {
 
+	// Constants
+	protected static final int JOURNAL_COMPACTION_MIN_RECORDS = 2000;	// Journal is never compacted below this number of records
+	protected static final int JOURNAL_COMPACTION_RATIO = 2;			// Journal is compacted when it has this many times more records than entries
+	protected static final int FILE_NAME_CACHE_SIZE = 128;				// Number of id->file name mappings remembered, to avoid hashing ids again
+	protected static final int WRITE_BUFFER_SIZE = 16384;				// Size of the buffer used when copying streams to the cache
+	protected static final int READ_BUFFER_SIZE = 8192;					// Size of the buffer of streams returned by getFileAsStream()
+	protected static final int MAP_THRESHOLD = 65536;					// Files at least this big are memory-mapped when read as buffers; smaller ones are read into pooled buffers
+	protected static final int BUFFER_POOL_SIZE = 4;					// Maximum number of read buffers kept for reuse
+	protected static final int DEFAULT_COMPRESSION_CODEC = FileCacheCodec.NONE;		// Compression is opt-in, since getFile() and getFilePath() return files as stored
+	protected static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;	// Compressible files smaller than this are stored as is, in bytes
+	protected static final String TEMP_FILE_SUFFIX = ".tmp";			// Suffix of files still being written
+	protected static final int NUM_FILE_LOCKS = 32;						// Number of locks shared by all file names
+	protected static final int SHARD_LEVELS = 2;						// Levels of subfolders files are spread across
+	protected static final int SHARD_NAME_LENGTH = 1;					// Characters of the file name used for the subfolder of each level
+	protected static final String SHARD_NAME_SHORT = "_";				// Subfolder used when a file name is too short to be split
+
 	// Static properties
-	private static ArrayList<FileCache> caches = new ArrayList<FileCache>();
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final ArrayList<ByteBuffer> bufferPool = new ArrayList<ByteBuffer>();	// Heap buffers of MAP_THRESHOLD bytes, ready for reuse
+	private static ConcurrentHashMap<String, FileCache> caches = new ConcurrentHashMap<String, FileCache>();	// Caches by id
 
 	// Properties
 	private final String id;
 	private String uniqueId;				// Id used for subfolder name
 
-	private long totalSize;					// Size of the cache, in bytes
-	private int numFiles;					// Number of files in the cache
-	private boolean fileListStatsDirty;		// If true, the number of files and file size in the cache is not known
+	private AtomicLong totalSize;			// Size of the cache on disk, in bytes
+	private AtomicLong logicalSize;			// Sum of the sizes of all files, in bytes; bigger than totalSize when files are deduplicated
+	private AtomicInteger numFiles;			// Number of files in the cache
+
+	private volatile long maxSize;			// Maximum size of the cache, in bytes; if 0, no limit
+	private volatile int maxFiles;			// Maximum number of files in the cache; if 0, no limit
+
+	private LinkedHashMap<String, FileCacheEntry> entries;	// Index of all files, by file name, least recently used first
+	private HashMap<String, FileCacheEntry> dirtyEntries;	// Files being written by editors, by file name
+	private HashSet<FileCacheEntry> accessedEntries;		// Files read since their access time was last saved to the journal
+	private LinkedHashMap<String, String> fileNames;		// File names of the most recently used ids
+	private HashMap<String, Integer> blobReferences;		// Number of files using each blob, by blob name
+	private volatile boolean deduplicates;	// If true, new files are stored as blobs named after their content, shared by files with the same content
+	private volatile int compressionCodec;	// Codec used for compressible content (text, XML, JSON...)
+	private volatile int compressionThreshold;	// Minimum size of compressible content to use compressionCodec, in bytes
+	private volatile boolean isIndexLoaded;	// If false, the index hasn't been read from the disk yet
+	private AtomicInteger numTempFiles;		// Number of temporary files created, used for unique names
+
+	// Locking: changes to the index and journal are made while holding indexLock, which is only held briefly. Disk
+	// operations on a file (writing, replacing, deleting) are made while holding the file's lock from fileLocks, picked
+	// by the hash of its name, so operations on unrelated files can run at the same time. A file lock can be taken
+	// before indexLock, but never the other way around
+	private final Object indexLock = new Object();
+	private Object[] fileLocks;
 
 	private File baseFolder;
 
-	private PersistentData expirationDates;	// Date the file expires, if any, in ms
+	private FileCacheJournal journal;		// Persisted log of the index (sizes, expiration dates, access times)
+	private PersistentData legacyExpirationDates;	// Expiration dates saved by older versions, migrated to the journal once
+
+	private FileCacheJanitor janitor;		// Created when first requested
+	private FileCacheStats stats;			// Activity counters, since creation or the last resetStats()
 
 	// ================================================================================================================
 	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
@@ -45,19 +107,48 @@ public class FileCache {
 	}
 
 	public static FileCache getFileCache(Context __context, String __id) {
-		int i;
+		String id = __id == null ? "" : __id;
 
 		// Try to find the cache
-		for (i = 0; i < caches.size(); i++) {
-			if (caches.get(i).getId() == __id) return caches.get(i);
+		FileCache cache = caches.get(id);
+		if (cache != null) return cache;
+
+		// Create in case it doesn't exist; locked so the same cache is never created twice by different threads
+		synchronized (caches) {
+			cache = caches.get(id);
+			if (cache == null) new FileCache(__context, id);		// Registers itself
+		}
+
+		return caches.get(id);
+	}
+
+	public static void releaseByteBuffer(ByteBuffer __buffer) {
+		// Gives a buffer returned by getFileAsByteBuffer() back so it can be reused; it must not be used after that
+		if (__buffer == null || __buffer.isDirect() || __buffer.capacity() != MAP_THRESHOLD) return;
+
+		synchronized (bufferPool) {
+			if (bufferPool.size() >= BUFFER_POOL_SIZE) return;
+			for (ByteBuffer buffer:bufferPool) {
+				if (buffer == __buffer) return;
+			}
+			bufferPool.add(__buffer);
 		}
+	}
 
-		// Create in case it doesn't exist
-		return new FileCache(__context, __id);
+	private static ByteBuffer obtainByteBuffer() {
+		synchronized (bufferPool) {
+			if (bufferPool.size() > 0) {
+				ByteBuffer buffer = bufferPool.remove(bufferPool.size() - 1);
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocate(MAP_THRESHOLD);
 	}
 
 	public static void addFileCache(FileCache __fileCache) {
-		caches.add(__fileCache);
+		// Registers a cache so it's returned by getFileCache(); the first cache registered for an id is kept
+		caches.putIfAbsent(__fileCache.getId(), __fileCache);
 	}
 
 	// ================================================================================================================
@@ -69,7 +160,7 @@ public class FileCache {
 	}
 
 	public FileCache(Context __context, String __id) {
-		id = __id;
+		id = __id == null ? "" : __id;
 		initialize(__context);
 	}
 
@@ -79,7 +170,7 @@ public class FileCache {
 	private void initialize(Context __context) {
 		//uniqueId = StringUtils.calculateMD5(id);
 		//if (uniqueId == null) uniqueId = id.replace("/","_").replace(" ","_").replace("\\","_").replace(":","_");
-		uniqueId = id == null ? "" : id.replace("/","_").replace(" ","_").replace("\\","_").replace(":","_");
+		uniqueId = id.replace("/","_").replace(" ","_").replace("\\","_").replace(":","_");
 
 		// Find the base folder
 
@@ -105,13 +196,43 @@ public class FileCache {
 		// http://developer.android.com/reference/android/content/Context.html#getExternalCacheDir()
 		//return context.getExternalCacheDir();
 
-		totalSize = 0;
-		numFiles = 0;
-		fileListStatsDirty = true;
+		totalSize = new AtomicLong(0);
+		logicalSize = new AtomicLong(0);
+		numFiles = new AtomicInteger(0);
 
-		FileCache.addFileCache(this);
+		maxSize = 0;
+		maxFiles = 0;
+
+		// Kept in insertion order instead of access order, so looking up an entry (for its validators, etc) doesn't change
+		// the eviction order; getEntry() moves entries that are actually used
+		entries = new LinkedHashMap<String, FileCacheEntry>(64, 0.75f, false);
+		isIndexLoaded = false;
+		numTempFiles = new AtomicInteger(0);
 
-		expirationDates = new PersistentData(__context, "filecache_expiration_" + uniqueId);
+		fileLocks = new Object[NUM_FILE_LOCKS];
+		for (int i = 0; i < fileLocks.length; i++) fileLocks[i] = new Object();
+
+		dirtyEntries = new HashMap<String, FileCacheEntry>();
+		accessedEntries = new HashSet<FileCacheEntry>();
+		blobReferences = new HashMap<String, Integer>();
+		deduplicates = false;
+		compressionCodec = DEFAULT_COMPRESSION_CODEC;
+		compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+		stats = new FileCacheStats();
+
+		fileNames = new LinkedHashMap<String, String>(FILE_NAME_CACHE_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> __eldest) {
+				return size() > FILE_NAME_CACHE_SIZE;
+			}
+		};
+
+		journal = new FileCacheJournal(new File(__context.getCacheDir(), baseFolder.getName() + ".journal"));
+		legacyExpirationDates = PersistentData.getInstance(__context, "filecache_expiration_" + uniqueId);
+
+		// Only registered once fully initialized, since other threads can get it from the registry right away
+		FileCache.addFileCache(this);
 	}
 
 	private String getFileName(String __id) {
@@ -128,99 +249,462 @@ public class FileCache {
 		//Log.v("FileCache", "File [" + __id + "] using the filename [" + filename + "]");
 //		return filename;
 
-		String filename = StringUtils.calculateMD5(__id);
+		// Hashing is expensive and the same ids are requested many times in a row, so recent results are remembered
+		String filename;
+		synchronized (fileNames) {
+			filename = fileNames.get(__id);
+		}
+		if (filename != null) return filename;
+
+		filename = StringUtils.calculateMD5(__id);
 		if (filename == null) filename = __id.replace("\\", "_").replace("/", "_").replace("?", "_").replace("=", "_").replace("&", "_").replace(":", "_").replace(" ", "_").replace("+", "_");
 
+		synchronized (fileNames) {
+			fileNames.put(__id, filename);
+		}
 		return filename;
 	}
 
-	private byte[] toByteArray(InputStream __inputStream) {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		int nRead;
-		byte[] fdata = new byte[16384];
+	private Object getFileLock(String __fileName) {
+		return fileLocks[(__fileName.hashCode() & 0x7fffffff) % fileLocks.length];
+	}
 
-		try {
-			while ((nRead = __inputStream.read(fdata, 0, fdata.length)) != -1) {
-				buffer.write(fdata, 0, nRead);
+	private void loadIndex() {
+		// Reads the index from the journal, once; from then on, the index is kept up-to-date as files are added or removed
+		if (isIndexLoaded) return;
+
+		synchronized (indexLock) {
+			if (!isIndexLoaded) readIndex();
+		}
+	}
+
+	private void readIndex() {
+		long ti = System.currentTimeMillis();
+
+		entries.clear();
+		accessedEntries.clear();
+		blobReferences.clear();
+		totalSize.set(0);
+		logicalSize.set(0);
+		numFiles.set(0);
+
+		HashMap<String, FileCacheEntry> loadedEntries = new HashMap<String, FileCacheEntry>();
+		HashSet<String> dirtyFileNames = new HashSet<String>();
+
+		migrateFlatFiles();
+
+		if (journal.read(loadedEntries, dirtyFileNames)) {
+			if (dirtyFileNames.size() > 0) {
+				// Some files were being written when the app was last closed
+				F.warn("Cache [" + id + "] has " + dirtyFileNames.size() + " files that were not committed; cleaning up");
+				deleteTempFiles(dirtyFileNames);
+				dirtyFileNames.clear();
+				journal.rewrite(loadedEntries.values(), dirtyFileNames);
+			} else if (journal.getHasFailed()) {
+				journal.rewrite(loadedEntries.values(), dirtyFileNames);
 			}
-			buffer.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+		} else {
+			// No journal yet: build the index from the files on disk
+			indexCacheDir(loadedEntries);
+			migrateLegacyExpirationDates(loadedEntries);
+			journal.rewrite(loadedEntries.values(), dirtyFileNames);
 		}
 
-		return buffer.toByteArray();
+		// Least recently used first
+		ArrayList<FileCacheEntry> sortedEntries = new ArrayList<FileCacheEntry>(loadedEntries.values());
+		Collections.sort(sortedEntries, new Comparator<FileCacheEntry>() {
+			@Override
+			public int compare(FileCacheEntry __entry1, FileCacheEntry __entry2) {
+				long t1 = __entry1.lastAccessTime;
+				long t2 = __entry2.lastAccessTime;
+				return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+			}
+		});
+
+		// Also counts the references to each blob
+		for (FileCacheEntry entry:sortedEntries) addToIndex(entry);
+
+		isIndexLoaded = true;
+
+		F.debug("Took " + (System.currentTimeMillis() - ti) + "ms to index " + numFiles + " files (" + totalSize + " bytes) in the cache.");
 	}
 
-	private void updateFileListStats(long __bytesToAdd, int __filesToAdd) {
-		// Updates the file list as a file is added or removed
-		// This is quicker than recalculating the whole list
-		// Only updates if the current stats are up-to-date; otherwise just let the list remain dirty for the time being
+	private static String getShardName(String __fileName, int __level) {
+		int start = __level * SHARD_NAME_LENGTH;
+		if (start + SHARD_NAME_LENGTH > __fileName.length()) return SHARD_NAME_SHORT;
+		return __fileName.substring(start, start + SHARD_NAME_LENGTH);
+	}
 
-		if (!fileListStatsDirty) {
-			// The list is up-to-date, just add the new data
-			totalSize += __bytesToAdd;
-			numFiles += __filesToAdd;
-		}
+	private File getShardFolder(String __fileName) {
+		// Files are spread across subfolders named after the first characters of their (hex) names, so no folder gets
+		// big enough to make listing it or looking files up in it slow
+		File folder = baseFolder;
+		for (int i = 0; i < SHARD_LEVELS; i++) folder = new File(folder, getShardName(__fileName, i));
+		return folder;
+	}
 
-		// The list stats is dirty anyway, recalculate everything
-		//recalculateFileListStats();
+	private File getFileLocation(String __fileName) {
+		return new File(getShardFolder(__fileName), __fileName);
 	}
 
-	private void recalculateFileListStats() {
-		// Recalculates list data: total file size and file number
+	private ArrayList<File> getShardFolders() {
+		// Returns all the subfolders that can contain files; each one is small, so they can be listed one at a time
+		ArrayList<File> folders = new ArrayList<File>();
+		ArrayList<File> subFolders;
+		File[] files;
+
+		folders.add(baseFolder);
+		for (int i = 0; i < SHARD_LEVELS; i++) {
+			subFolders = new ArrayList<File>();
+			for (File folder:folders) {
+				files = folder.listFiles();
+				if (files == null) continue;
+				for (File f:files) {
+					if (f.isDirectory()) subFolders.add(f);
+				}
+			}
+			folders = subFolders;
+		}
 
-		long ti = System.currentTimeMillis();
+		return folders;
+	}
 
-		totalSize = 0;
-		numFiles = 0;
+	private void migrateFlatFiles() {
+		// Moves files that older versions saved directly in the base folder into their subfolders
+		// Once migrated, the base folder only has the first level of subfolders, so listing it is cheap
 		File[] files = getCacheDir().listFiles();
 
 		if (files == null) {
 			F.warn("Cache dir " + getCacheDir() + " is not a directory!");
-			fileListStatsDirty = false;
 			return;
 		}
 
+		int filesMoved = 0;
+		File newFile;
+
 		for (File f:files) {
-			totalSize += f.length();
-			numFiles++;
-			//f.delete();
+			if (f.isDirectory()) continue;
+
+			if (f.getName().endsWith(TEMP_FILE_SUFFIX)) {
+				// Left over from an interrupted write
+				f.delete();
+				continue;
+			}
+
+			newFile = getFileLocation(f.getName());
+			newFile.getParentFile().mkdirs();
+			if (f.renameTo(newFile)) {
+				filesMoved++;
+			} else {
+				F.warn("Could not move cache file " + f + " to " + newFile + "; deleting it");
+				f.delete();
+			}
+		}
+
+		if (filesMoved > 0) F.debug("Moved " + filesMoved + " files of cache [" + id + "] into subfolders");
+	}
+
+	private void indexCacheDir(Map<String, FileCacheEntry> __entries) {
+		// Creates index entries for all files in the cache subfolders
+		File[] files;
+
+		for (File folder:getShardFolders()) {
+			files = folder.listFiles();
+			if (files == null) continue;
+
+			for (File f:files) {
+				if (f.getName().endsWith(TEMP_FILE_SUFFIX)) {
+					// Left over from an interrupted write
+					f.delete();
+					continue;
+				}
+				__entries.put(f.getName(), new FileCacheEntry(f.getName(), f.length(), f.lastModified()));
+			}
+		}
+	}
+
+	private void deleteTempFiles(Collection<String> __fileNames) {
+		// Deletes the temporary files of the given files; only safe when no editors are running
+		// Temporary files are kept next to their files, so only their subfolders are listed
+		HashSet<File> folders = new HashSet<File>();
+		for (String fileName:__fileNames) folders.add(getShardFolder(fileName));
+
+		File[] files;
+		for (File folder:folders) {
+			files = folder.listFiles();
+			if (files == null) continue;
+
+			for (File f:files) {
+				if (f.getName().endsWith(TEMP_FILE_SUFFIX)) f.delete();
+			}
+		}
+	}
+
+	private void migrateLegacyExpirationDates(Map<String, FileCacheEntry> __entries) {
+		// Moves the expiration dates saved in the SharedPreferences by older versions into the index, then clears them
+		Map<String, ?> values = legacyExpirationDates.getAll();
+		if (values.size() == 0) return;
+
+		FileCacheEntry entry;
+		for (Map.Entry<String, ?> value:values.entrySet()) {
+			entry = __entries.get(value.getKey());
+			if (entry != null && value.getValue() instanceof Long) entry.expirationTime = (Long)value.getValue();
+		}
+
+		F.debug("Migrated " + values.size() + " expiration dates from the preferences of cache [" + id + "]");
+
+		legacyExpirationDates.clear();
+	}
+
+	private void compactJournalIfNeeded() {
+		int numRecords = journal.getNumRecords();
+		if (journal.getHasFailed() || (numRecords > JOURNAL_COMPACTION_MIN_RECORDS && numRecords > entries.size() * JOURNAL_COMPACTION_RATIO)) {
+			rewriteJournal();
+		}
+	}
+
+	private void rewriteJournal() {
+		// Must be called while holding indexLock; the new journal has the current access times, so none are pending anymore
+		journal.rewrite(entries.values(), dirtyEntries.keySet());
+		accessedEntries.clear();
+	}
+
+	private FileCacheEntry getEntry(String __fileName) {
+		// Returns the index entry for a file, marking it as recently used
+		// Access times are only kept in memory here, so reads don't write to the disk; see saveAccessTimes()
+		loadIndex();
+		synchronized (indexLock) {
+			FileCacheEntry entry = entries.remove(__fileName);
+			if (entry != null) {
+				entries.put(__fileName, entry);
+				entry.lastAccessTime = System.currentTimeMillis();
+				accessedEntries.add(entry);
+			}
+			return entry;
+		}
+	}
+
+	private void addToIndex(FileCacheEntry __entry) {
+		// Adds an entry to the index and the cache stats; must be called while holding indexLock
+		entries.put(__entry.fileName, __entry);
+		numFiles.incrementAndGet();
+		logicalSize.addAndGet(__entry.size);
+
+		if (__entry.blobName == null || addBlobReference(__entry.blobName) == 1) totalSize.addAndGet(__entry.size);
+	}
+
+	private long removeFromIndex(FileCacheEntry __entry) {
+		// Removes the stats of an entry that was taken out of the index, deleting its blob if it was the last file using
+		// it; returns the number of bytes freed on disk. Must be called while holding indexLock
+		__entry.state = FileCacheEntry.STATE_REMOVED;
+		accessedEntries.remove(__entry);
+		numFiles.decrementAndGet();
+		logicalSize.addAndGet(-__entry.size);
+
+		if (__entry.blobName != null && removeBlobReference(__entry.blobName) > 0) return 0;
+
+		totalSize.addAndGet(-__entry.size);
+		return __entry.size;
+	}
+
+	private int addBlobReference(String __blobName) {
+		// Returns the new number of references
+		Integer numReferences = blobReferences.get(__blobName);
+		numReferences = numReferences == null ? 1 : numReferences + 1;
+		blobReferences.put(__blobName, numReferences);
+		return numReferences;
+	}
+
+	private int removeBlobReference(String __blobName) {
+		// Returns the new number of references; blobs are deleted once they're not used anymore
+		// Blobs are only created and deleted while holding indexLock, so a blob can never be deleted while being reused
+		Integer numReferences = blobReferences.get(__blobName);
+		if (numReferences == null || numReferences <= 1) {
+			blobReferences.remove(__blobName);
+			getFileLocation(__blobName).delete();
+			return 0;
+		}
+
+		blobReferences.put(__blobName, numReferences - 1);
+		return numReferences - 1;
+	}
+
+	private boolean storeBlob(String __blobName, File __tempFile) {
+		// Moves new content into its blob, or discards it if a blob with the same content already exists; must be called
+		// while holding indexLock
+		if (blobReferences.containsKey(__blobName)) {
+			__tempFile.delete();
+			return true;
+		}
+
+		File blob = getFileLocation(__blobName);
+		File folder = blob.getParentFile();
+		if (!folder.isDirectory()) folder.mkdirs();
+
+		if (!__tempFile.renameTo(blob)) {
+			F.error("Error trying to write file: could not rename " + __tempFile + " to " + blob + "!");
+			return false;
+		}
+		return true;
+	}
+
+	private File getContentLocation(FileCacheEntry __entry) {
+		// File with the content of an entry
+		return getFileLocation(__entry.blobName == null ? __entry.fileName : __entry.blobName);
+	}
+
+	private FileCacheEntry addEntry(String __fileName, long __size, long __time, String __blobName, int __codec) {
+		// Adds a file to the index (or replaces it), updating the cache stats; returns the entry it replaced, if any
+		synchronized (indexLock) {
+			FileCacheEntry oldEntry = entries.remove(__fileName);
+
+			FileCacheEntry entry = new FileCacheEntry(__fileName, __size, __time);
+			entry.blobName = __blobName;
+			entry.codec = __codec;
+			addToIndex(entry);
+
+			// Removed after the new entry is added, so a blob used by both is kept
+			if (oldEntry != null) removeFromIndex(oldEntry);
+
+			journal.putEntry(entry);
+			compactJournalIfNeeded();
+
+			return oldEntry;
+		}
+	}
+
+	private long removeEntry(String __fileName) {
+		// Removes a file from the index, updating the cache stats; returns the number of bytes freed on disk, or -1 if
+		// it wasn't in the index. Deduplicated files have their blobs deleted here; other files must be deleted by the caller
+		synchronized (indexLock) {
+			FileCacheEntry oldEntry = entries.remove(__fileName);
+			if (oldEntry == null) return -1;
+
+			long bytesFreed = removeFromIndex(oldEntry);
+
+			journal.removeEntry(__fileName);
+			compactJournalIfNeeded();
+			return bytesFreed;
+		}
+	}
+
+	private long removeEntry(FileCacheEntry __entry) {
+		// Removes an entry from the index, unless it was already removed or replaced; returns the number of bytes freed
+		// on disk, or -1 if it wasn't removed
+		synchronized (indexLock) {
+			return __entry.state == FileCacheEntry.STATE_REMOVED ? -1 : removeEntry(__entry.fileName);
+		}
+	}
+
+	private boolean getIsIndexed(String __fileName) {
+		// Checks files and blobs; doesn't mark the file as recently used
+		synchronized (indexLock) {
+			return entries.containsKey(__fileName) || blobReferences.containsKey(__fileName);
+		}
+	}
+
+	private FileCacheEntry getLeastRecentlyUsedEntry(String __protectedFileName) {
+		synchronized (indexLock) {
+			for (FileCacheEntry entry:entries.values()) {
+				if (!entry.fileName.equals(__protectedFileName)) return entry;
+			}
+			return null;
+		}
+	}
+
+	private void trimToBudget(String __protectedFileName) {
+		// Evicts the least recently used files until the cache fits the size and file number limits
+		// Must not be called while holding a file lock, since it needs to take the locks of the files it evicts
+		if (!getIsOverBudget()) return;
+
+		int filesDeleted = 0;
+		long bytesDeleted = 0;
+		long fileSize;
+
+		while ((fileSize = evictLeastRecentlyUsed(__protectedFileName)) >= 0) {
+			bytesDeleted += fileSize;
+			filesDeleted++;
+		}
+
+		F.debug("Evicted " + filesDeleted + " files and " + bytesDeleted + " bytes from cache [" + id + "]; now at " + numFiles + " files and " + totalSize + " bytes");
+	}
+
+	private void deleteStaleFiles(long __cutTime) {
+		// Removes files that have expired or, if __cutTime > 0, that were last modified before it
+		long now = System.currentTimeMillis();
+
+		int bNumFiles = getNumFiles();
+		long bTotalSize = getTotalSize();
+
+		int filesDeleted = 0;
+		long bytesDeleted = 0;
+		long fileSize;
+
+		for (FileCacheEntry entry:getEntries()) {
+			fileSize = deleteFileIfStale(entry, now, __cutTime);
+			if (fileSize >= 0) {
+				if (Debug.isDebuggerConnected()) F.warn("      Deleted file ["+entry.fileName+"] with an exp date of " + new Date(entry.expirationTime).toString());
+				bytesDeleted += fileSize;
+				filesDeleted++;
+			}
 		}
 
-		fileListStatsDirty = false;
+		F.debug("   " + filesDeleted + " files and " + bytesDeleted + " bytes deleted (of " + bNumFiles + " files and " + bTotalSize + " bytes)");
 
-		F.debug("Took " + (System.currentTimeMillis() - ti) + "ms to refresh the cache file size.");
+		F.debug("   Took " + (System.currentTimeMillis() - now) + "ms to trim file cache");
+	}
+
+	private boolean getIsOverBudget() {
+		return (maxSize > 0 && totalSize.get() > maxSize) || (maxFiles > 0 && numFiles.get() > maxFiles);
 	}
 
 	private Long getFileExpirationTimeByFilename(String __fileName) {
-		return expirationDates.getLong(__fileName, 0L);
+		loadIndex();
+		synchronized (indexLock) {
+			FileCacheEntry entry = entries.get(__fileName);
+			return entry == null ? 0L : entry.expirationTime;
+		}
 	}
 
 	private void setFileExpirationTimeByFilename(String __fileName, long __time) {
-		expirationDates.putLong(__fileName, __time);
+		// Only files that exist in the cache can have an expiration date
+		loadIndex();
+		synchronized (indexLock) {
+			FileCacheEntry entry = entries.get(__fileName);
+			if (entry != null && entry.expirationTime != __time) {
+				entry.expirationTime = __time;
+				journal.setExpirationTime(__fileName, __time);
+				compactJournalIfNeeded();
+			}
+		}
 	}
 
 	private void removeFileExpirationTimeByFilename(String __fileName) {
-		expirationDates.remove(__fileName);
+		setFileExpirationTimeByFilename(__fileName, 0);
 	}
 
-	private boolean deleteFileIfExpired(String __id) {
-		// Checks if a file is expired, deleting it if needed
-		File file = getFileForId(__id, true);
-
-		if (file.exists()) {
-
-			long now = System.currentTimeMillis();
-			long expDate = getFileExpirationTime(__id);
+	private FileCacheEntry getValidEntry(String __fileName) {
+		// Returns the index entry for a file if it exists and is not expired, marking it as recently used
+		// Expired files are deleted; this only uses the in-memory index, so it doesn't touch the disk otherwise
+		synchronized (getFileLock(__fileName)) {
+			FileCacheEntry entry;
+			boolean isExpired;
+
+			synchronized (indexLock) {
+				entry = getEntry(__fileName);
+				isExpired = entry != null && entry.expirationTime > 0 && entry.expirationTime < System.currentTimeMillis();
+				if (isExpired) removeEntry(__fileName);
+			}
 
-			if (expDate > 0 && expDate < now) {
+			if (isExpired) {
 				// File is old and must be deleted
-				deleteFile(__id);
-				return true;
+				if (entry.blobName == null) getFileLocation(__fileName).delete();
+				stats.recordExpiration();
+				return null;
 			}
-		}
 
-		return false;
+			return entry;
+		}
 	}
 
 	private File getFileForId(String __id) {
@@ -228,17 +712,211 @@ public class FileCache {
 	}
 
 	private File getFileForId(String __id, boolean __bypassExpirationCheck) {
-		if (!__bypassExpirationCheck) deleteFileIfExpired(__id);
-		return new File(getCacheDir(), getFileName(__id));
+		String fileName = getFileName(__id);
+		if (!__bypassExpirationCheck) {
+			FileCacheEntry entry = getValidEntry(fileName);
+			if (entry != null) return getContentLocation(entry);
+		}
+		return getFileLocation(fileName);
+	}
+
+	private File getExistingFileForId(String __id) {
+		// Returns the file for an id if it's in the cache, or null otherwise; costs one hash and one stat at most
+		FileCacheEntry entry = getExistingEntryForId(__id);
+		return entry == null ? null : getContentLocation(entry);
+	}
+
+	private FileCacheEntry getExistingEntryForId(String __id) {
+		// Returns the index entry for an id if it's in the cache, or null otherwise
+		String fileName = getFileName(__id);
+
+		synchronized (getFileLock(fileName)) {
+			FileCacheEntry entry = getValidEntry(fileName);
+			if (entry == null) return null;
+
+			// If file size is 0 (or it doesn't exist anymore), ignores it; files are committed atomically, so this is either
+			// empty content or a file that was removed behind the cache's back
+			if (getContentLocation(entry).length() == 0) {
+				if (removeEntry(entry) >= 0 && entry.blobName == null) getFileLocation(fileName).delete();
+				return null;
+			}
+
+			return entry;
+		}
+	}
+
+	private FileCacheEntry getIndexedEntry(String __id) {
+		// Returns a copy of the index entry of an id, or null if it's not in the index; doesn't mark it as recently used
+		String fileName = getFileName(__id);
+		loadIndex();
+		synchronized (indexLock) {
+			FileCacheEntry entry = entries.get(fileName);
+			if (entry == null) return null;
+
+			FileCacheEntry copy = new FileCacheEntry(entry.fileName, entry.size, entry.lastAccessTime);
+			copy.expirationTime = entry.expirationTime;
+			copy.blobName = entry.blobName;
+			copy.codec = entry.codec;
+			copy.eTag = entry.eTag;
+			copy.lastModified = entry.lastModified;
+			copy.cacheControl = entry.cacheControl;
+			copy.validationTime = entry.validationTime;
+			return copy;
+		}
+	}
+
+	private OpenEntry openExistingEntryForId(String __id) {
+		// Returns the index entry for an id with its content already open, or null if it's not in the cache
+		// The file is opened while holding its lock, the same one commitEdit() holds while replacing the file and its
+		// entry, so the content always matches the entry (and its codec) even if the file is replaced right after
+		String fileName = getFileName(__id);
+
+		synchronized (getFileLock(fileName)) {
+			FileCacheEntry entry = getExistingEntryForId(__id);
+			if (entry == null) return null;
+
+			try {
+				// Raw content is counted as it's read; encoded content is counted once decoded
+				File file = getContentLocation(entry);
+				return new OpenEntry(entry, entry.codec == FileCacheCodec.NONE ? new CountingFileInputStream(file, stats) : new FileInputStream(file));
+			} catch (IOException __e) {
+				F.error("Error trying to open file! " + __e);
+				return null;
+			}
+		}
+	}
+
+	private InputStream decodeEntry(OpenEntry __entry) throws IOException {
+		// Returns the content of an open entry, decoding it if needed
+		if (__entry.entry.codec == FileCacheCodec.NONE) return __entry.input;
+
+		FileCacheCodec codec = FileCacheCodec.getCodec(__entry.entry.codec);
+		if (codec == null) {
+			__entry.input.close();
+			throw new IOException("Unknown codec " + __entry.entry.codec);
+		}
+		return new CountingInputStream(codec.getInputStream(__entry.input), stats);
+	}
+
+	private void endEdit(String __fileName) {
+		// Must be called while holding indexLock
+		FileCacheEntry dirtyEntry = dirtyEntries.get(__fileName);
+		if (dirtyEntry != null && --dirtyEntry.numEditors <= 0) dirtyEntries.remove(__fileName);
+	}
+
+	boolean commitEdit(FileCacheEditor __editor, File __tempFile, String __blobName, int __codec) {
+		// Called by an editor once its content is written; moves it into place, returning true if successful
+		// If __blobName is not null, the content is stored in (or discarded in favor of) the blob with that name
+		File file = __editor.getFile();
+		String fileName = file.getName();
+
+		synchronized (getFileLock(fileName)) {
+			// Renaming replaces the old file atomically, and readers open files while holding the same lock, so they always
+			// get either the old content with the old entry or the new content with the new entry
+			long size = __tempFile.length();
+			if (__blobName == null && !__tempFile.renameTo(file)) {
+				F.error("Error trying to write file: could not rename " + __tempFile + " to " + file + "!");
+				__tempFile.delete();
+				abortEdit(__editor);
+				return false;
+			}
+
+			FileCacheEntry oldEntry;
+			synchronized (indexLock) {
+				if (__blobName != null && !storeBlob(__blobName, __tempFile)) {
+					__tempFile.delete();
+					abortEdit(__editor);
+					return false;
+				}
+
+				endEdit(fileName);
+				oldEntry = addEntry(fileName, size, System.currentTimeMillis(), __blobName, __codec);
+				if (dirtyEntries.containsKey(fileName)) journal.setDirty(fileName);
+			}
+
+			// A file that wasn't deduplicated is replaced by a blob
+			if (__blobName != null && oldEntry != null && oldEntry.blobName == null) file.delete();
+
+			stats.recordPut(size, __editor.getStartNanoTime());
+		}
+
+		trimToBudget(fileName);
+		return true;
+	}
+
+	void abortEdit(FileCacheEditor __editor) {
+		// Called by an editor when its content is discarded
+		String fileName = __editor.getFile().getName();
+
+		synchronized (indexLock) {
+			endEdit(fileName);
+			if (!dirtyEntries.containsKey(fileName)) {
+				// Clears the dirty state in the journal
+				FileCacheEntry entry = entries.get(fileName);
+				if (entry != null) {
+					journal.putEntry(entry);
+				} else {
+					journal.removeEntry(fileName);
+				}
+				compactJournalIfNeeded();
+			}
+		}
+	}
+
+	ArrayList<FileCacheEntry> getEntries() {
+		// Returns a copy of the index, least recently used first
+		loadIndex();
+		synchronized (indexLock) {
+			return new ArrayList<FileCacheEntry>(entries.values());
+		}
+	}
+
+	long evictLeastRecentlyUsed(String __protectedFileName) {
+		// Deletes the least recently used file if the cache is over budget; returns the number of bytes freed on disk, or
+		// -1 if nothing was deleted
+		while (getIsOverBudget()) {
+			FileCacheEntry entry = getLeastRecentlyUsedEntry(__protectedFileName);
+			if (entry == null) return -1;
+
+			synchronized (getFileLock(entry.fileName)) {
+				// Skipped if it was replaced or removed by another thread in the meantime
+				long bytesFreed = removeEntry(entry);
+				if (bytesFreed < 0) continue;
+				if (entry.blobName == null) getFileLocation(entry.fileName).delete();
+				stats.recordEviction();
+				return bytesFreed;
+			}
+		}
+		return -1;
+	}
+
+	long deleteFileIfStale(FileCacheEntry __entry, long __now, long __cutTime) {
+		// Deletes a file if it has expired by __now or, if __cutTime > 0, was last modified before __cutTime
+		// Returns the number of bytes freed on disk, or -1 if it was kept
+		synchronized (getFileLock(__entry.fileName)) {
+			boolean isStale;
+			synchronized (indexLock) {
+				if (__entry.state == FileCacheEntry.STATE_REMOVED) return -1;
+				isStale = __entry.expirationTime > 0 && __entry.expirationTime < __now;
+			}
+
+			if (!isStale && __cutTime > 0) isStale = getContentLocation(__entry).lastModified() < __cutTime;
+			if (!isStale) return -1;
+
+			long bytesFreed = removeEntry(__entry);
+			if (bytesFreed < 0) return -1;
+
+			if (__entry.blobName == null) getFileLocation(__entry.fileName).delete();
+			stats.recordExpiration();
+			return bytesFreed;
+		}
 	}
 
 	// ================================================================================================================
 	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
 
 	public boolean getFileExists(String __id) {
-		File file = getFileForId(__id);
-		// If file size is 0, ignores it because it may be a faulty record
-		return file.exists() && file.length() > 0;
+		return getExistingFileForId(__id) != null;
 	}
 
 	public long getFileTime(String __id) {
@@ -263,6 +941,70 @@ public class FileCache {
 		removeFileExpirationTimeByFilename(getFileName(__id));
 	}
 
+	public void setFileValidators(String __id, String __eTag, String __lastModified, String __cacheControl) {
+		// Stores the HTTP validators of a file (the ETag, Last-Modified and Cache-Control response headers it was downloaded
+		// with), marking it as validated now. Null values keep the ones already stored, so this can also be used to
+		// refresh a file after a 304 (Not Modified) response. Validators are cleared when the file is written again
+		String fileName = getFileName(__id);
+		loadIndex();
+		synchronized (indexLock) {
+			FileCacheEntry entry = entries.get(fileName);
+			if (entry == null) return;
+
+			if (__eTag != null) entry.eTag = __eTag;
+			if (__lastModified != null) entry.lastModified = __lastModified;
+			if (__cacheControl != null) entry.cacheControl = __cacheControl;
+			entry.validationTime = System.currentTimeMillis();
+
+			journal.setValidators(entry);
+			compactJournalIfNeeded();
+		}
+	}
+
+	public String getFileETag(String __id) {
+		FileCacheEntry entry = getIndexedEntry(__id);
+		return entry == null ? null : entry.eTag;
+	}
+
+	public String getFileLastModified(String __id) {
+		// Last-Modified header the file was downloaded with, as sent by the server
+		FileCacheEntry entry = getIndexedEntry(__id);
+		return entry == null ? null : entry.lastModified;
+	}
+
+	public String getFileCacheControl(String __id) {
+		FileCacheEntry entry = getIndexedEntry(__id);
+		return entry == null ? null : entry.cacheControl;
+	}
+
+	public long getFileValidationTime(String __id) {
+		FileCacheEntry entry = getIndexedEntry(__id);
+		return entry == null ? 0 : entry.validationTime;
+	}
+
+	public boolean getFileIsFresh(String __id, long __defaultMaxAge) {
+		// Whether a file was validated recently enough to be used without asking its server again: within the max-age
+		// of its Cache-Control, or within __defaultMaxAge ms if it has none. Files with "no-cache" are never fresh
+		FileCacheEntry entry = getIndexedEntry(__id);
+		if (entry == null || entry.validationTime == 0) return false;
+
+		long maxAge = __defaultMaxAge;
+		if (entry.cacheControl != null) {
+			for (String directive:entry.cacheControl.toLowerCase(Locale.US).split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache") || directive.equals("no-store")) return false;
+				if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring(8).trim()) * 1000;
+					} catch (NumberFormatException __e) {
+					}
+				}
+			}
+		}
+
+		return System.currentTimeMillis() < entry.validationTime + maxAge;
+	}
+
 	public boolean touchFile(String __id) {
 		return touchFile(__id, false);
 	}
@@ -270,62 +1012,182 @@ public class FileCache {
 	public boolean touchFile(String __id, boolean __pushExpirationDate) {
 		// "Touches" a file, changing its last modified date for today
 
+		String fileName = getFileName(__id);
 		File file = getFileForId(__id);
-		if (!file.exists()) return false;
 
-		long newDate = System.currentTimeMillis();
-		long lastDate = file.lastModified();
+		synchronized (getFileLock(fileName)) {
+			if (!file.exists()) return false;
+
+			long newDate = System.currentTimeMillis();
+			long lastDate = file.lastModified();
+
+			boolean success = file.setLastModified(newDate);
+
+			// Marks it as recently used
+			getEntry(fileName);
 
-		boolean success = file.setLastModified(newDate);
-		if (__pushExpirationDate) {
-			// Pushes the file expiration dates forward by the same amount, if it has any
-			long dateOffset = newDate - lastDate;
-			long expDate = getFileExpirationTime(__id);
-			if (expDate > 0) setFileExpirationTime(__id, expDate + dateOffset);
+			if (__pushExpirationDate) {
+				// Pushes the file expiration dates forward by the same amount, if it has any
+				long dateOffset = newDate - lastDate;
+				long expDate = getFileExpirationTime(__id);
+				if (expDate > 0) setFileExpirationTime(__id, expDate + dateOffset);
+			}
+			return success;
 		}
-		return success;
+	}
+
+	public long getFileSize(String __id) {
+		// Size of a file as stored, in bytes, or -1 if it's not in the index; only reads the index, so it doesn't touch the
+		// disk, count as a read in the stats, or mark the file as recently used
+		FileCacheEntry entry = getIndexedEntry(__id);
+		return entry == null ? -1 : entry.size;
 	}
 
 	public String getFilePath(String __id) {
 		// Return a direct file location
+		// The file has the content as stored: if it was written with a codec other than FileCacheCodec.NONE (only when
+		// enabled with setCompressionCodec() or edit(String, int)), it's encoded; use getFileDecoded() to read it decoded
 		File file = getFileForId(__id);
 		return file.getPath();
 	}
 
+	public String getFilePathIfExists(String __id) {
+		// Return a direct file location if the file is in the cache, or null if it isn't
+		// Quicker than getFileExists() followed by getFilePath()
+		long ti = System.nanoTime();
+		File file = getExistingFileForId(__id);
+		stats.recordGet(file != null, ti);
+		return file == null ? null : file.getPath();
+	}
+
 	public String getFileAsString(String __id) {
-		FileInputStream input = getFile(__id);
+		CharSequence content = getFileAsCharSequence(__id);
+		return content == null ? null : content.toString();
+	}
 
-		if (input != null) {
-			StringBuffer fileContent = new StringBuffer("");
+	public CharSequence getFileAsCharSequence(String __id) {
+		// Returns the content of a file decoded as UTF-8, or null if it's not in the cache
+		// The whole content is decoded in one pass, so multi-byte characters are never split; invalid ones are replaced
+		ByteBuffer buffer = getFileAsByteBuffer(__id);
+		if (buffer == null) return null;
 
-			byte[] buffer = new byte[1024];
+		CharsetDecoder decoder = UTF_8.newDecoder();
+		decoder.onMalformedInput(CodingErrorAction.REPLACE);
+		decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		try {
+			return decoder.decode(buffer);
+		} catch (CharacterCodingException __e) {
+			F.warn("Error decoding file as string! " + __e);
+			return null;
+		} finally {
+			releaseByteBuffer(buffer);
+		}
+	}
+
+	public ByteBuffer getFileAsByteBuffer(String __id) {
+		// Returns the content of a file, or null if it's not in the cache
+		// Big files are memory-mapped, so their content is only paged in as it's read. Small files are read into a pooled
+		// buffer, which can be given back with releaseByteBuffer() when it's not needed anymore
+		// Files stored with a codec are decoded into a new buffer
+		long ti = System.nanoTime();
+		ByteBuffer buffer = readEntry(openExistingEntryForId(__id));
+		stats.recordGet(buffer != null, ti);
+		if (buffer != null) stats.recordBytesRead(buffer.remaining());
+		return buffer;
+	}
+
+	private ByteBuffer readEntry(OpenEntry __entry) {
+		if (__entry == null) return null;
+		if (__entry.entry.codec != FileCacheCodec.NONE) return readDecodedEntry(__entry);
+
+		FileInputStream input = __entry.input;
+		try {
+			// Read from the channel, so it's not counted by the stream; the caller counts the whole buffer instead
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+
+			// The mapping stays valid after the channel is closed
+			if (size >= MAP_THRESHOLD) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			ByteBuffer buffer = obtainByteBuffer();
+			buffer.limit((int)size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1) break;
+			}
+			buffer.flip();
+			return buffer;
+		} catch (IOException __e) {
+			F.error("Error trying to read file! " + __e);
+			return null;
+		} finally {
 			try {
-				int length;
-				while ((length = input.read(buffer)) != -1) {
-					fileContent.append((new String(buffer)).substring(0, length));
-				}
+				input.close();
 			} catch (IOException __e) {
-				F.warn("Error reading file as string!");
-				return null;
 			}
+		}
+	}
 
-			return fileContent.toString();
+	private ByteBuffer readDecodedEntry(OpenEntry __entry) {
+		InputStream input = __entry.input;
+		try {
+			// Read from the codec directly, so it's not counted by the stream; the caller counts the whole buffer instead
+			FileCacheCodec codec = FileCacheCodec.getCodec(__entry.entry.codec);
+			if (codec == null) throw new IOException("Unknown codec " + __entry.entry.codec);
+			input = codec.getInputStream(__entry.input);
+
+			// Decoded content is usually a few times bigger
+			ByteArrayOutputStream output = new ByteArrayOutputStream((int)Math.min(__entry.entry.size * 4, Integer.MAX_VALUE / 2));
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			int read;
+			while ((read = input.read(buffer)) != -1) output.write(buffer, 0, read);
+
+			return ByteBuffer.wrap(output.toByteArray());
+		} catch (IOException __e) {
+			F.error("Error trying to decode file! " + __e);
+			return null;
+		} finally {
+			try {
+				input.close();
+			} catch (IOException __e) {
+			}
 		}
+	}
 
-		return null;
+	public InputStream getFileAsStream(String __id) {
+		// Same as getFileDecoded(), but buffered
+		InputStream input = getFileDecoded(__id);
+		return input == null ? null : new BufferedInputStream(input, READ_BUFFER_SIZE);
 	}
 
 	public FileInputStream getFile(String __id) {
-		// Based on a file id, return the file input stream
-		FileInputStream input = null;
-		try {
-			File file = getFileForId(__id);
-			input = new FileInputStream(file);
+		// Based on a file id, return the file input stream, or null if it's not in the cache
+		// Files stored with a codec other than FileCacheCodec.NONE are returned as stored, encoded; use getFileDecoded() to
+		// read them decoded
+		long ti = System.nanoTime();
+		OpenEntry entry = openExistingEntryForId(__id);
+
+		//if (entry != null) F.info("File " + getFileName(__id) + " returned from " + getCacheDir().getAbsolutePath());
+
+		stats.recordGet(entry != null, ti);
+		return entry == null ? null : entry.input;
+	}
+
+	public InputStream getFileDecoded(String __id) {
+		// Same as getFile(), but files stored with a codec are decoded as they're read
+		long ti = System.nanoTime();
+		OpenEntry entry = openExistingEntryForId(__id);
 
-			//F.info("File " + getFileName(__id) + " returned from " + getCacheDir().getAbsolutePath());
-		} catch (Exception __e) {
-			F.error("Error trying to open file! " + __e);
+		InputStream input = null;
+		if (entry != null) {
+			try {
+				input = decodeEntry(entry);
+			} catch (IOException __e) {
+				F.error("Error trying to decode file! " + __e);
+			}
 		}
+
+		stats.recordGet(input != null, ti);
 		return input;
 	}
 
@@ -349,62 +1211,130 @@ public class FileCache {
 //	}
 
 	public void putFile(String __id, String __content) {
-		putFile(__id, new ByteArrayInputStream(__content.getBytes()));
+		// Saved as UTF-8, the same encoding used by getFileAsString()
+		byte[] bytes;
+		try {
+			bytes = __content.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException __e) {
+			bytes = __content.getBytes();
+		}
+		putFile(__id, bytes, "text/plain");
 	}
 
 	public void putFile(String __id, InputStream __content) {
-		putFile(__id, toByteArray(__content));
-	}
+		// Streams the content to the disk through a fixed buffer, instead of reading it all into memory first
+		FileCacheEditor editor = edit(__id);
+		OutputStream output = editor.getOutputStream();
 
-	public void putFile(String __id, Bitmap __bitmap, CompressFormat __format, int __quality)  {
-		if (getFileExists(__id)) deleteFile(__id);
+		if (output == null) {
+			editor.abort();
+			return;
+		}
+
+		byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+		int read;
 
-		File file = getFileForId(__id);
-		FileOutputStream output = null;
 		try {
-			output = new FileOutputStream(file);
-		} catch (FileNotFoundException __e) {
-			F.error("Error trying to write file: File not found!");
+			while ((read = __content.read(buffer, 0, buffer.length)) != -1) {
+				output.write(buffer, 0, read);
+			}
+		} catch (IOException __e) {
+			F.error("Error trying to write file!");
 			F.error(__e.toString());
+			editor.abort();
+			return;
 		}
 
-		if (output != null && __bitmap != null && __format != null) {
-			__bitmap.compress(__format, __quality, output);
-			updateFileListStats(file.length(), 1);
+		editor.commit();
+	}
+
+	public FileCacheEditor edit(String __id) {
+		return edit(__id, FileCacheCodec.NONE);
+	}
+
+	public FileCacheEditor edit(String __id, int __codec) {
+		// Returns an editor for writing a file as a stream; the file is only replaced when the editor is committed
+		// The current version of the file (if any) can still be read while the new one is being written
+		// Content is encoded with the codec with id __codec (one of the FileCacheCodec constants) as it's written
+		FileCacheCodec codec = FileCacheCodec.getCodec(__codec);
+		if (codec == null) {
+			F.warn("Unknown codec " + __codec + "; file " + __id + " won't be encoded");
+			codec = FileCacheCodec.getCodec(FileCacheCodec.NONE);
+		}
+
+		loadIndex();
+
+		String fileName = getFileName(__id);
+
+		synchronized (indexLock) {
+			FileCacheEntry dirtyEntry = dirtyEntries.get(fileName);
+			if (dirtyEntry == null) {
+				dirtyEntry = new FileCacheEntry(fileName, 0, System.currentTimeMillis());
+				dirtyEntry.state = FileCacheEntry.STATE_DIRTY;
+				dirtyEntries.put(fileName, dirtyEntry);
+				journal.setDirty(fileName);
+			}
+			dirtyEntry.numEditors++;
+		}
+
+		// Each editor writes to its own temporary file, so several threads can write the same id at once; the last one
+		// to be committed wins
+		File folder = getShardFolder(fileName);
+		if (!folder.isDirectory()) folder.mkdirs();
+
+		File tempFile = new File(folder, fileName + "." + numTempFiles.getAndIncrement() + TEMP_FILE_SUFFIX);
+		return new FileCacheEditor(this, __id, getFileLocation(fileName), tempFile, codec, deduplicates);
+	}
+
+	public void putFile(String __id, Bitmap __bitmap, CompressFormat __format, int __quality)  {
+		if (__bitmap == null || __format == null) return;
 
-			F.debug("File " + __id + " saved as " + getFileName(__id) + " on " + getCacheDir().getAbsolutePath());
-			F.debug("Total file cache size is " + getTotalSize() + " in " + getNumFiles() + " files");
+		FileCacheEditor editor = edit(__id);
+		OutputStream output = editor.getOutputStream();
 
-			System.gc();
+		if (output == null || !__bitmap.compress(__format, __quality, output)) {
+			F.error("Error trying to write bitmap file!");
+			editor.abort();
+			return;
 		}
 
-		// TODO: delete files based on cache limit size?
+		editor.commit();
+
+		F.debug("Total file cache size is " + getTotalSize() + " in " + getNumFiles() + " files");
+
+		System.gc();
 	}
 
 	public void putFile(String __id, byte[] __content) {
+		putFile(__id, __content, FileCacheCodec.NONE);
+	}
+
+	public void putFile(String __id, byte[] __content, String __contentType) {
+		// Compressible content types are compressed if big enough; see setCompressionCodec()
+		putFile(__id, __content, getCodecForContent(__contentType, __content.length));
+	}
+
+	public void putFile(String __id, byte[] __content, int __codec) {
 		// Record file
-		if (getFileExists(__id)) deleteFile(__id);
+		FileCacheEditor editor = edit(__id, __codec);
+		OutputStream output = editor.getOutputStream();
 
-		try {
-			File file = getFileForId(__id);
+		if (output == null) {
+			editor.abort();
+			return;
+		}
 
+		try {
 			//F.log("===> trying to write " + __content.length + " bytes to " + file);
-			//F.log("===> location is "  + getCacheDir() + " as exists = " + getCacheDir().exists());
-			FileOutputStream output = new FileOutputStream(file);
 			output.write(__content);
-			output.close();
-
-			//F.log("===> wrote file with size "  + file.length() + " bytes");
-			updateFileListStats(__content.length, 1);
-		} catch (Exception __e) {
+		} catch (IOException __e) {
 			F.error("Error trying to write file!");
 			F.error(__e.toString());
+			editor.abort();
+			return;
 		}
 
-		F.debug("File " + __id + " saved as " + getFileName(__id) + " on " + getCacheDir().getAbsolutePath());
-		//F.debug("Total file cache size is " + getTotalSize() + " in " + getNumFiles() + " files");
-
-		// TODO: delete files based on cache limit size?
+		editor.commit();
 	}
 
 	public boolean deleteFile(String __id) {
@@ -412,84 +1342,63 @@ public class FileCache {
 
 		// Removes file
 		File file = getFileForId(__id, true);
-		long fileSize = file.length();
-		boolean wasDeleted = file.delete();
 
-		if (wasDeleted) updateFileListStats(-fileSize, -1);
+		synchronized (getFileLock(file.getName())) {
+			boolean wasDeleted = file.delete();
 
-		removeFileExpirationTime(__id);
-
-		return wasDeleted;
-	}
-
-	public void deleteAllFiles() {
-		File[] files = getCacheDir().listFiles();
+			// Deduplicated files don't have a file of their own, so they're only removed from the index
+			loadIndex();
+			if (removeEntry(file.getName()) >= 0) wasDeleted = true;
 
-		if (files == null) {
-			F.warn("Cache dir " + getCacheDir() + " is not a directory!");
-			return;
+			return wasDeleted;
 		}
-
-		for (File f:files) f.delete();
-
-		totalSize = 0;;
-		numFiles = 0;;
-		fileListStatsDirty = false;
 	}
 
-	public void deleteExpiredFiles() {
-		// Removes files that have expired
-
-		F.debug("Trimming expired files from cache [" + id + "]");
-
-		long now = System.currentTimeMillis();
-		long expDate;
-
-		int bNumFiles = getNumFiles();
-		long bTotalSize = getTotalSize();
-
-		int filesDeleted = 0;
-		long bytesDeleted = 0;
-		boolean wasDeleted;
-		long fileSize;
+	public void deleteAllFiles() {
+		loadIndex();
 
-		File[] files = getCacheDir().listFiles();
+		synchronized (indexLock) {
+			for (FileCacheEntry entry:entries.values()) entry.state = FileCacheEntry.STATE_REMOVED;
+			entries.clear();
+			blobReferences.clear();
+			totalSize.set(0);
+			logicalSize.set(0);
+			numFiles.set(0);
 
-		if (files == null) {
-			F.warn("Cache dir " + getCacheDir() + " is not a directory!");
-			return;
+			rewriteJournal();
 		}
 
-		for (File f:files) {
+		// Files are deleted one subfolder at a time after the index is cleared, so other threads can keep using the
+		// cache meanwhile; files added since then, and temporary files of editors that may still be writing, are kept
+		File[] files;
+		for (File folder:getShardFolders()) {
+			files = folder.listFiles();
+			if (files == null) continue;
 
-			expDate = getFileExpirationTimeByFilename(f.getName());
+			for (File f:files) {
+				if (f.getName().endsWith(TEMP_FILE_SUFFIX)) continue;
 
-			if (expDate > 0 && expDate < now) {
-				// Delete the file
-				if (Debug.isDebuggerConnected()) F.warn("      Deleting file ["+f.getName()+"] created in " + new Date(f.lastModified()).toString() + " with an exp date of" +new Date(expDate).toString());
-
-				fileSize = Debug.isDebuggerConnected() ? 0 : f.length();
-				wasDeleted = f.delete();
-
-				if (wasDeleted) {
-					bytesDeleted += fileSize;
-					filesDeleted++;
-					fileListStatsDirty = true;
+				synchronized (getFileLock(f.getName())) {
+					if (!getIsIndexed(f.getName())) f.delete();
 				}
 			}
 		}
+	}
 
-		F.debug("   " + filesDeleted + " files and " + bytesDeleted + " bytes deleted (of " + bNumFiles + " files and " + bTotalSize + " bytes)");
+	public void deleteExpiredFiles() {
+		// Removes files that have expired
+		// Runs on the calling thread; use getJanitor() to do it in the background instead
 
-		F.debug("   Took " + (System.currentTimeMillis() - now) + "ms to trim file cache");
+		F.debug("Trimming expired files from cache [" + id + "]");
+
+		deleteStaleFiles(0);
 	}
 
 	public void deleteFilesByAge(long __days) {
-		// Delete files from the cache based on how old they are
+		// Delete files from the cache based on how old they are, as well as files that have expired
+		// Runs on the calling thread; use getJanitor() to do it in the background instead
 
-		deleteExpiredFiles();
-
-		F.debug("Erasing files from cache [" + id + "] that are " + __days + " or more days old");
+		F.debug("Erasing files from cache [" + id + "] that are expired or " + __days + " or more days old");
 		long now = System.currentTimeMillis();
 		long maxAge = __days * 24 * 60 * 60 * 1000;
 
@@ -499,44 +1408,42 @@ public class FileCache {
 
 		F.debug("   Time now is " + new Date(now).toString() + "; erasing files created before " + new Date(cutTime).toString());
 
-		int bNumFiles = getNumFiles();
-		long bTotalSize = getTotalSize();
-
-		int filesDeleted = 0;
-		long bytesDeleted = 0;
-		boolean wasDeleted;
-		long fileSize;
-
-		File[] files = getCacheDir().listFiles();
-
-		if (files == null) {
-			F.warn("Cache dir " + getCacheDir() + " is not a directory!");
-			return;
-		}
-
-		for (File f:files) {
+		deleteStaleFiles(cutTime);
+	}
 
-			if (f.lastModified() < cutTime) {
-				// Delete the file
-				if (Debug.isDebuggerConnected()) F.warn("      Deleting file ["+f.getName()+"] created in " + new Date(f.lastModified()).toString());
+	public void saveAccessTimes() {
+		// Saves the access times of the files read since the last save to the journal, in one batch, so the least recently
+		// used order survives the app being closed. The janitor calls it after each run, and compacting the journal saves
+		// them too; call it when the app goes to the background to lose as little of it as possible
+		if (!isIndexLoaded) return;
 
-				fileSize = Debug.isDebuggerConnected() ? 0 : f.length();
-				wasDeleted = f.delete();
+		synchronized (indexLock) {
+			if (accessedEntries.size() == 0) return;
 
-				if (wasDeleted) {
-					bytesDeleted += fileSize;
-					filesDeleted++;
-					fileListStatsDirty = true;
-				}
+			for (FileCacheEntry entry:accessedEntries) {
+				journal.setLastAccessTime(entry.fileName, entry.lastAccessTime);
 			}
-		}
+			accessedEntries.clear();
 
-		F.debug("   " + filesDeleted + " files and " + bytesDeleted + " bytes deleted (of " + bNumFiles + " files and " + bTotalSize + " bytes)");
+			journal.flush();
+			compactJournalIfNeeded();
+		}
+	}
 
-		F.debug("   Took " + (System.currentTimeMillis() - now) + "ms to trim file cache");
+	public synchronized FileCacheJanitor getJanitor() {
+		// Background worker that trims this cache incrementally
+		if (janitor == null) janitor = new FileCacheJanitor(this);
+		return janitor;
+	}
 
+	public FileCacheStats getStats() {
+		// Returns a snapshot of the activity of this cache since it was created or since resetStats() was last called
+		return stats.getSnapshot(getTotalSize(), getLogicalSize(), getNumFiles());
 	}
 
+	public void resetStats() {
+		stats.reset();
+	}
 
 	// ================================================================================================================
 	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
@@ -554,13 +1461,158 @@ public class FileCache {
 	}
 
 	public long getTotalSize() {
-		if (fileListStatsDirty) recalculateFileListStats();
-		return totalSize;
+		loadIndex();
+		return totalSize.get();
 	}
 
 	public int getNumFiles() {
-		if (fileListStatsDirty) recalculateFileListStats();
-		return numFiles;
+		loadIndex();
+		return numFiles.get();
+	}
+
+	public long getLogicalSize() {
+		// Sum of the sizes of all files, counting deduplicated content once per file
+		loadIndex();
+		return logicalSize.get();
 	}
 
+	public int getNumBlobs() {
+		// Number of distinct contents stored for deduplicated files
+		loadIndex();
+		synchronized (indexLock) {
+			return blobReferences.size();
+		}
+	}
+
+	public float getDeduplicationRatio() {
+		// How many bytes are cached for each byte on disk; 1 when nothing is shared
+		long diskSize = getTotalSize();
+		return diskSize == 0 ? 1 : (float)logicalSize.get() / diskSize;
+	}
+
+	public int getCodecForContent(String __contentType, long __size) {
+		// Codec used for content of the given MIME type and size, in bytes
+		if (__size < compressionThreshold || !FileCacheCodec.getIsCompressible(__contentType)) return FileCacheCodec.NONE;
+		return compressionCodec;
+	}
+
+	public int getCompressionCodec() {
+		return compressionCodec;
+	}
+
+	public void setCompressionCodec(int __codec) {
+		// Codec used for compressible content (one of the FileCacheCodec constants); FileCacheCodec.NONE (the default)
+		// disables it. Files stored with another codec must be read with getFileDecoded(), getFileAsString(), etc, since
+		// getFile() and getFilePath() give their encoded content
+		compressionCodec = __codec;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int __compressionThreshold) {
+		// Compressible content smaller than this is stored as is, in bytes
+		compressionThreshold = __compressionThreshold;
+	}
+
+	public boolean getDeduplicates() {
+		return deduplicates;
+	}
+
+	public void setDeduplicates(boolean __deduplicates) {
+		// If true, files written from now on are stored once per distinct content (identified by a SHA-1 hash) and shared
+		// by all ids with the same content. Files already in the cache are kept as they are
+		deduplicates = __deduplicates;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(long __maxSize) {
+		// Maximum size of the cache, in bytes; least recently used files are deleted when it's exceeded. Use 0 for no limit
+		maxSize = __maxSize;
+		loadIndex();
+		trimToBudget(null);
+	}
+
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	public void setMaxFiles(int __maxFiles) {
+		// Maximum number of files in the cache; least recently used files are deleted when it's exceeded. Use 0 for no limit
+		maxFiles = __maxFiles;
+		loadIndex();
+		trimToBudget(null);
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class OpenEntry {
+
+		// An index entry, with its content opened while holding its file lock
+
+		public final FileCacheEntry entry;
+		public final FileInputStream input;
+
+		public OpenEntry(FileCacheEntry __entry, FileInputStream __input) {
+			entry = __entry;
+			input = __input;
+		}
+	}
+
+	private static class CountingFileInputStream extends FileInputStream {
+
+		// Counts the bytes read from a cached file in the cache stats, while still being a FileInputStream
+
+		private final FileCacheStats stats;
+
+		public CountingFileInputStream(File __file, FileCacheStats __stats) throws IOException {
+			super(__file);
+			stats = __stats;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) stats.recordBytesRead(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] __buffer, int __offset, int __length) throws IOException {
+			int read = super.read(__buffer, __offset, __length);
+			if (read > 0) stats.recordBytesRead(read);
+			return read;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		// Counts the bytes read from a decoded cached file in the cache stats
+
+		private final FileCacheStats stats;
+
+		public CountingInputStream(InputStream __input, FileCacheStats __stats) {
+			super(__input);
+			stats = __stats;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) stats.recordBytesRead(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] __buffer, int __offset, int __length) throws IOException {
+			int read = super.read(__buffer, __offset, __length);
+			if (read > 0) stats.recordBytesRead(read);
+			return read;
+		}
+	}
 }
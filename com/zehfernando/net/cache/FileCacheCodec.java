@@ -0,0 +1,125 @@
+package com.zehfernando.net.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public abstract class FileCacheCodec {
+
+	/*
+	Encoding used to store the content of a FileCache file on disk. The codec of each file is saved in the cache
+	journal, so files are decoded transparently when read with FileCache.getFileDecoded(), getFileAsString(), etc.
+
+	NONE stores the content as is; DEFLATE gives the best ratio; LZ is a lot faster to write and read, with a lower
+	ratio. Files that are already compressed (images, etc) should use NONE.
+	*/
+
+	// Constants
+	public static final int NONE = 0;
+	public static final int DEFLATE = 1;
+	public static final int LZ = 2;
+
+	protected static final int BUFFER_SIZE = 8192;
+
+	// Static properties
+	private static final FileCacheCodec noneCodec = new NoneCodec();
+	private static final FileCacheCodec deflateCodec = new DeflateCodec();
+	private static final FileCacheCodec lzCodec = new FileCacheLZCodec();
+
+	// ================================================================================================================
+	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public static FileCacheCodec getCodec(int __id) {
+		switch (__id) {
+			case NONE:
+				return noneCodec;
+			case DEFLATE:
+				return deflateCodec;
+			case LZ:
+				return lzCodec;
+		}
+		return null;
+	}
+
+	public static boolean getIsCompressible(String __contentType) {
+		// Whether content of a MIME type (e.g. "application/rss+xml; charset=utf-8") is worth compressing
+		if (__contentType == null) return false;
+
+		String type = __contentType.toLowerCase(Locale.US);
+		return type.startsWith("text/") || type.contains("xml") || type.contains("json") || type.contains("javascript");
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public abstract int getId();
+
+	public abstract OutputStream getOutputStream(OutputStream __output) throws IOException;
+
+	public abstract InputStream getInputStream(InputStream __input) throws IOException;
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class NoneCodec extends FileCacheCodec {
+
+		@Override
+		public int getId() {
+			return NONE;
+		}
+
+		@Override
+		public OutputStream getOutputStream(OutputStream __output) {
+			return __output;
+		}
+
+		@Override
+		public InputStream getInputStream(InputStream __input) {
+			return __input;
+		}
+	}
+
+	private static class DeflateCodec extends FileCacheCodec {
+
+		@Override
+		public int getId() {
+			return DEFLATE;
+		}
+
+		@Override
+		public OutputStream getOutputStream(OutputStream __output) {
+			final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			return new DeflaterOutputStream(__output, deflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					// Deflaters passed to the stream are not released by it
+					try {
+						super.close();
+					} finally {
+						deflater.end();
+					}
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream(InputStream __input) {
+			final Inflater inflater = new Inflater();
+			return new InflaterInputStream(__input, inflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.zehfernando.net.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.zehfernando.utils.F;
+
+public class FileCacheEditor {
+
+	/*
+	Writes a new file to a FileCache as a stream, without keeping its content in memory.
+	Data is written to a temporary file, which only replaces the cached file when commit() is called.
+
+	Usage:
+
+		FileCacheEditor editor = fileCache.edit(id);
+		OutputStream output = editor.getOutputStream();
+		(write to output...)
+		editor.commit(); // or editor.abort() in case of errors
+	*/
+
+	// Constants
+	protected static final int BUFFER_SIZE = 8192;
+	protected static final String BLOB_DIGEST_ALGORITHM = "SHA-1";		// Used to name blobs after their content, when deduplicating
+
+	// Properties
+	private final FileCache cache;
+	private final String id;
+	private final File file;
+	private final File tempFile;
+	private final FileCacheCodec codec;
+	private final long startNanoTime;				// When the edit started, for the cache stats
+
+	private OutputStream outputStream;
+	private MessageDigest digest;					// Hash of the content written so far, when deduplicating
+	private boolean isDone;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	FileCacheEditor(FileCache __cache, String __id, File __file, File __tempFile, FileCacheCodec __codec, boolean __deduplicates) {
+		cache = __cache;
+		id = __id;
+		file = __file;
+		tempFile = __tempFile;
+		codec = __codec;
+		startNanoTime = System.nanoTime();
+		outputStream = null;
+		isDone = false;
+
+		digest = null;
+		if (__deduplicates) {
+			try {
+				digest = MessageDigest.getInstance(BLOB_DIGEST_ALGORITHM);
+			} catch (NoSuchAlgorithmException __e) {
+				F.warn("Could not create " + BLOB_DIGEST_ALGORITHM + " digest; file " + id + " won't be deduplicated");
+			}
+		}
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private boolean closeOutputStream() {
+		if (outputStream != null) {
+			try {
+				outputStream.close();
+			} catch (IOException __e) {
+				F.error("Error trying to close cache file " + tempFile + "! " + __e);
+				outputStream = null;
+				return false;
+			}
+			outputStream = null;
+		}
+		return true;
+	}
+
+	private String getBlobName() {
+		// Name of the blob for the content written, or null if not deduplicating
+		if (digest == null) return null;
+
+		byte[] hash = digest.digest();
+		StringBuilder name = new StringBuilder(hash.length * 2);
+		for (int i = 0; i < hash.length; i++) {
+			name.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			name.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return name.toString();
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public OutputStream getOutputStream() {
+		// Returns the stream the new content should be written to, or null if it can't be created
+		if (isDone) return null;
+
+		if (outputStream == null) {
+			try {
+				outputStream = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+
+				// The content is hashed as it's written, so it doesn't have to be read again when committed
+				if (digest != null) outputStream = new DigestOutputStream(outputStream, digest);
+
+				outputStream = codec.getOutputStream(outputStream);
+			} catch (FileNotFoundException __e) {
+				F.error("Error trying to write file: could not create " + tempFile + "!");
+				return null;
+			} catch (IOException __e) {
+				F.error("Error trying to write file: could not encode " + tempFile + "! " + __e);
+				closeOutputStream();
+				return null;
+			}
+		}
+
+		return outputStream;
+	}
+
+	public boolean commit() {
+		// Makes the written content the new cached file; returns true if successful
+		if (isDone) return false;
+		isDone = true;
+
+		if (!closeOutputStream() || !tempFile.exists()) {
+			tempFile.delete();
+			cache.abortEdit(this);
+			return false;
+		}
+
+		if (!cache.commitEdit(this, tempFile, getBlobName(), codec.getId())) return false;
+
+		F.debug("File " + id + " saved as " + file.getName() + " on " + file.getParent());
+
+		return true;
+	}
+
+	public void abort() {
+		// Discards the written content, leaving the cached file (if any) untouched
+		if (isDone) return;
+		isDone = true;
+
+		closeOutputStream();
+		tempFile.delete();
+		cache.abortEdit(this);
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public String getId() {
+		return id;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public FileCacheCodec getCodec() {
+		return codec;
+	}
+
+	long getStartNanoTime() {
+		return startNanoTime;
+	}
+
+	public boolean getIsDone() {
+		return isDone;
+	}
+}
@@ -0,0 +1,90 @@
+package com.zehfernando.net.cache;
+
+public class FileCacheEntry {
+
+	// A record of one file in a FileCache's in-memory index
+
+	// Constants
+	public static final int STATE_CLEAN = 0;		// File was committed and can be read
+	public static final int STATE_DIRTY = 1;		// A new version of the file is being written
+	public static final int STATE_REMOVED = 2;		// File was removed from the index, or replaced by a newer version
+
+	// Properties
+	String fileName;					// Name of the file inside the cache folder
+	long size;							// Size of the file, in bytes
+	long lastAccessTime;				// Last time the file was written or read, in ms
+	long expirationTime;				// Time the file expires, in ms; if 0, never expires
+	int state;							// One of the STATE_* constants
+	int numEditors;						// Number of editors writing the file, when dirty
+	String blobName;					// Name of the shared file with the content, when deduplicated; if null, the content is in the file itself
+	int codec;							// Id of the FileCacheCodec the content is encoded with
+	String eTag;						// HTTP validators of the content, if it was downloaded; null if not known
+	String lastModified;
+	String cacheControl;
+	long validationTime;				// Last time the content was downloaded or confirmed as current, in ms; if 0, never
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public FileCacheEntry(String __fileName, long __size, long __lastAccessTime) {
+		fileName = __fileName;
+		size = __size;
+		lastAccessTime = __lastAccessTime;
+		expirationTime = 0;
+		state = STATE_CLEAN;
+		numEditors = 0;
+		blobName = null;
+		codec = FileCacheCodec.NONE;
+		eTag = null;
+		lastModified = null;
+		cacheControl = null;
+		validationTime = 0;
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	public long getExpirationTime() {
+		return expirationTime;
+	}
+
+	public int getState() {
+		return state;
+	}
+
+	public String getBlobName() {
+		return blobName;
+	}
+
+	public int getCodec() {
+		return codec;
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public String getCacheControl() {
+		return cacheControl;
+	}
+
+	public long getValidationTime() {
+		return validationTime;
+	}
+}
@@ -0,0 +1,244 @@
+package com.zehfernando.net.cache;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.zehfernando.utils.F;
+
+public class FileCacheJanitor {
+
+	/*
+	Trims a FileCache in the background. It deletes expired files, files older than a maximum age, and the least recently
+	used files while the cache is over its size or file number limits. It works from the cache's in-memory index instead
+	of listing the folder, in short batches on a low priority thread, so it can run at app start without competing with
+	the UI.
+
+	Usage:
+
+		FileCacheJanitor janitor = fileCache.getJanitor();
+		janitor.setMaxAge(7 * 24 * 60 * 60 * 1000L);
+		janitor.setOnCompleteListener(...);
+		janitor.start();
+
+		// While the app needs the disk for something more important
+		janitor.pause();
+		...
+		janitor.resume();
+	*/
+
+	// Constants
+	protected static final long DEFAULT_BATCH_TIME = 10;			// Time spent working on each batch, in ms
+	protected static final long DEFAULT_BATCH_INTERVAL = 50;		// Time to wait between batches, in ms
+
+	// Properties
+	private final FileCache cache;
+	private final Handler handler;									// Used to dispatch events on the main thread
+
+	private volatile long maxAge;									// Files last modified longer ago than this are deleted, in ms; if 0, no limit
+	private volatile long batchTime;
+	private volatile long batchInterval;
+
+	private Thread thread;											// Thread of the current run, if any
+	private boolean isPaused;
+	private boolean isStopped;
+
+	private int lastFilesDeleted;									// Stats of the last complete run
+	private long lastBytesDeleted;
+
+	private OnFileCacheJanitorCompleteListener onCompleteListener;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public FileCacheJanitor(FileCache __cache) {
+		cache = __cache;
+		handler = new Handler(Looper.getMainLooper());
+
+		maxAge = 0;
+		batchTime = DEFAULT_BATCH_TIME;
+		batchInterval = DEFAULT_BATCH_INTERVAL;
+
+		thread = null;
+		isPaused = false;
+		isStopped = false;
+
+		lastFilesDeleted = 0;
+		lastBytesDeleted = 0;
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private synchronized boolean waitForNextBatch() {
+		// Waits between batches, and for as long as it's paused; returns false if the run was stopped meanwhile
+		try {
+			if (!isStopped && batchInterval > 0) wait(batchInterval);
+			while (isPaused && !isStopped) wait();
+		} catch (InterruptedException __e) {
+			isStopped = true;
+		}
+		return !isStopped;
+	}
+
+	private void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		long ti = System.currentTimeMillis();
+		long cutTime = maxAge > 0 ? ti - maxAge : 0;
+
+		int filesDeleted = 0;
+		long bytesDeleted = 0;
+		long fileSize;
+
+		// Doesn't start while paused
+		boolean isRunning = waitForNextBatch();
+		long batchStartTime = System.currentTimeMillis();
+
+		// Expired and old files
+		if (isRunning) {
+			for (FileCacheEntry entry:cache.getEntries()) {
+				if (System.currentTimeMillis() - batchStartTime >= batchTime) {
+					if (!(isRunning = waitForNextBatch())) break;
+					batchStartTime = System.currentTimeMillis();
+				}
+
+				fileSize = cache.deleteFileIfStale(entry, ti, cutTime);
+				if (fileSize >= 0) {
+					bytesDeleted += fileSize;
+					filesDeleted++;
+				}
+			}
+		}
+
+		// Least recently used files, while over budget
+		while (isRunning) {
+			if (System.currentTimeMillis() - batchStartTime >= batchTime) {
+				if (!(isRunning = waitForNextBatch())) break;
+				batchStartTime = System.currentTimeMillis();
+			}
+
+			fileSize = cache.evictLeastRecentlyUsed(null);
+			if (fileSize < 0) break;
+
+			bytesDeleted += fileSize;
+			filesDeleted++;
+		}
+
+		// Access times are only kept in memory while files are read, so they're saved here in one batch
+		cache.saveAccessTimes();
+
+		F.debug("Janitor deleted " + filesDeleted + " files and " + bytesDeleted + " bytes from cache [" + cache.getId() + "] in " + (System.currentTimeMillis() - ti) + "ms" + (isRunning ? "" : " before being stopped"));
+
+		final int finalFilesDeleted = filesDeleted;
+		final long finalBytesDeleted = bytesDeleted;
+
+		synchronized (this) {
+			thread = null;
+			lastFilesDeleted = filesDeleted;
+			lastBytesDeleted = bytesDeleted;
+		}
+
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				dispatchOnComplete(finalFilesDeleted, finalBytesDeleted);
+			}
+		});
+	}
+
+	private void dispatchOnComplete(int __filesDeleted, long __bytesDeleted) {
+		if (onCompleteListener != null) onCompleteListener.onComplete(this, __filesDeleted, __bytesDeleted);
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public synchronized void start() {
+		// Starts a new run, unless one is already running
+		if (thread != null) return;
+
+		isStopped = false;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				FileCacheJanitor.this.run();
+			}
+		}, "FileCacheJanitor [" + cache.getId() + "]");
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		// Stops the current run at the end of the current batch; files already deleted are still reported
+		isStopped = true;
+		notifyAll();
+	}
+
+	public synchronized void pause() {
+		// Pauses the current and future runs at the end of the current batch, until resume() is called
+		isPaused = true;
+	}
+
+	public synchronized void resume() {
+		isPaused = false;
+		notifyAll();
+	}
+
+	public interface OnFileCacheJanitorCompleteListener {
+		public void onComplete(FileCacheJanitor __janitor, int __filesDeleted, long __bytesDeleted);
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public FileCache getFileCache() {
+		return cache;
+	}
+
+	public synchronized boolean getIsRunning() {
+		return thread != null;
+	}
+
+	public synchronized boolean getIsPaused() {
+		return isPaused;
+	}
+
+	public synchronized int getLastFilesDeleted() {
+		return lastFilesDeleted;
+	}
+
+	public synchronized long getLastBytesDeleted() {
+		return lastBytesDeleted;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public void setMaxAge(long __maxAge) {
+		// Files last modified longer ago than this are deleted, in ms; use 0 for no limit
+		maxAge = __maxAge;
+	}
+
+	public long getBatchTime() {
+		return batchTime;
+	}
+
+	public void setBatchTime(long __batchTime) {
+		// Time spent working before taking a break, in ms
+		batchTime = __batchTime;
+	}
+
+	public long getBatchInterval() {
+		return batchInterval;
+	}
+
+	public void setBatchInterval(long __batchInterval) {
+		// Length of the breaks between batches, in ms
+		batchInterval = __batchInterval;
+	}
+
+	public void setOnCompleteListener(OnFileCacheJanitorCompleteListener __listener) {
+		onCompleteListener = __listener;
+	}
+}
@@ -0,0 +1,373 @@
+package com.zehfernando.net.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import com.zehfernando.utils.F;
+
+public class FileCacheJournal {
+
+	/*
+	Append-only binary log of changes to a FileCache's index, so metadata changes cost a small append instead of
+	rewriting a whole file. The journal is replayed into memory when the cache starts, and compacted (rewritten with
+	just the current state) once it gets too long.
+
+	Format:
+		int MAGIC, int VERSION
+		(byte OP, UTF fileName, op fields...)*
+
+	A truncated record (left by a crash while appending) or an unknown one ends the replay; everything read up to that
+	point is kept, and getHasFailed() becomes true so the journal is rewritten before anything else is appended to it.
+
+	OP_DIRTY is written before a new version of a file starts being written, and is cleared by the OP_PUT (or OP_REMOVE)
+	written when it's committed or aborted. Files that are still dirty when the journal is replayed were interrupted by
+	a crash, so their temporary files can be cleaned up.
+
+	OP_PUT_BLOB replaces OP_PUT for files stored in deduplication mode, whose content is in a blob file shared by all
+	files with the same content. OP_CODEC follows the OP_PUT (or OP_PUT_BLOB) of files stored with a FileCacheCodec
+	other than NONE. OP_VALIDATORS stores the HTTP validators of downloaded files; they're cleared by a new OP_PUT.
+
+	Not thread-safe: FileCache only uses it while holding its index lock.
+	*/
+
+	// Constants
+	protected static final int MAGIC = 0x5a464341;				// "ZFCA"
+	protected static final int VERSION = 1;
+
+	protected static final byte OP_PUT = 1;						// Fields: size, last access time, expiration time
+	protected static final byte OP_REMOVE = 2;					// No fields
+	protected static final byte OP_EXPIRATION = 3;				// Fields: expiration time
+	protected static final byte OP_ACCESS = 4;					// Fields: last access time
+	protected static final byte OP_DIRTY = 5;					// No fields
+	protected static final byte OP_PUT_BLOB = 6;				// Fields: size, last access time, expiration time, UTF blob name
+	protected static final byte OP_CODEC = 7;					// Fields: codec id
+	protected static final byte OP_VALIDATORS = 8;				// Fields: UTF ETag, UTF Last-Modified, UTF Cache-Control ("" if not known), validation time
+
+	// Properties
+	private final File file;
+	private DataOutputStream output;
+	private int numRecords;										// Number of records in the journal, including redundant ones
+	private boolean hasFailed;									// If true, writing failed and the journal must be rewritten
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public FileCacheJournal(File __file) {
+		file = __file;
+		output = null;
+		numRecords = 0;
+		hasFailed = false;
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private DataOutputStream getOutput() throws IOException {
+		if (output == null) {
+			boolean isNew = file.length() == 0;
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			if (isNew) writeHeader(output);
+		}
+		return output;
+	}
+
+	private void writeRecord(byte __op, String __fileName, long... __fields) {
+		if (hasFailed) return;
+
+		try {
+			DataOutputStream out = getOutput();
+			out.writeByte(__op);
+			out.writeUTF(__fileName);
+			for (long field:__fields) out.writeLong(field);
+			numRecords++;
+		} catch (IOException __e) {
+			F.warn("Could not write to cache journal " + file + "! " + __e);
+			hasFailed = true;
+			close();
+		}
+	}
+
+	private void writeEntry(FileCacheEntry __entry) {
+		if (hasFailed) return;
+
+		try {
+			numRecords += writeEntry(getOutput(), __entry);
+		} catch (IOException __e) {
+			F.warn("Could not write to cache journal " + file + "! " + __e);
+			hasFailed = true;
+			close();
+		}
+	}
+
+	private static int writeEntry(DataOutputStream __output, FileCacheEntry __entry) throws IOException {
+		// Returns the number of records written
+		__output.writeByte(__entry.blobName == null ? OP_PUT : OP_PUT_BLOB);
+		__output.writeUTF(__entry.fileName);
+		__output.writeLong(__entry.size);
+		__output.writeLong(__entry.lastAccessTime);
+		__output.writeLong(__entry.expirationTime);
+		if (__entry.blobName != null) __output.writeUTF(__entry.blobName);
+
+		int numRecords = 1;
+
+		if (__entry.codec != FileCacheCodec.NONE) {
+			__output.writeByte(OP_CODEC);
+			__output.writeUTF(__entry.fileName);
+			__output.writeLong(__entry.codec);
+			numRecords++;
+		}
+
+		if (__entry.validationTime > 0) {
+			writeValidators(__output, __entry);
+			numRecords++;
+		}
+
+		return numRecords;
+	}
+
+	private static void writeValidators(DataOutputStream __output, FileCacheEntry __entry) throws IOException {
+		__output.writeByte(OP_VALIDATORS);
+		__output.writeUTF(__entry.fileName);
+		__output.writeUTF(__entry.eTag == null ? "" : __entry.eTag);
+		__output.writeUTF(__entry.lastModified == null ? "" : __entry.lastModified);
+		__output.writeUTF(__entry.cacheControl == null ? "" : __entry.cacheControl);
+		__output.writeLong(__entry.validationTime);
+	}
+
+	private static String readOptionalUTF(DataInputStream __input) throws IOException {
+		String value = __input.readUTF();
+		return value.length() == 0 ? null : value;
+	}
+
+	private static void writeHeader(DataOutputStream __output) throws IOException {
+		__output.writeInt(MAGIC);
+		__output.writeInt(VERSION);
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public boolean read(Map<String, FileCacheEntry> __entries, Set<String> __dirtyFileNames) {
+		// Replays the journal into __entries, and the names of files left dirty into __dirtyFileNames
+		// Returns false if there's no valid journal to read from
+		close();
+
+		if (!file.exists()) return false;
+
+		numRecords = 0;
+		DataInputStream input = null;
+		boolean isAtRecordEnd = false;		// If false when the end of the file is reached, the last record was cut short
+
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				F.warn("Cache journal " + file + " has an unknown format; ignoring it");
+				return false;
+			}
+			isAtRecordEnd = true;
+
+			byte op;
+			String fileName;
+			FileCacheEntry entry;
+
+			while (true) {
+				op = input.readByte();
+				isAtRecordEnd = false;
+				fileName = input.readUTF();
+
+				switch (op) {
+					case OP_PUT:
+					case OP_PUT_BLOB:
+						entry = new FileCacheEntry(fileName, input.readLong(), input.readLong());
+						entry.expirationTime = input.readLong();
+						if (op == OP_PUT_BLOB) entry.blobName = input.readUTF();
+						__entries.put(fileName, entry);
+						__dirtyFileNames.remove(fileName);
+						break;
+					case OP_REMOVE:
+						__entries.remove(fileName);
+						__dirtyFileNames.remove(fileName);
+						break;
+					case OP_DIRTY:
+						__dirtyFileNames.add(fileName);
+						break;
+					case OP_EXPIRATION:
+						entry = __entries.get(fileName);
+						long expirationTime = input.readLong();
+						if (entry != null) entry.expirationTime = expirationTime;
+						break;
+					case OP_CODEC:
+						entry = __entries.get(fileName);
+						long codec = input.readLong();
+						if (entry != null) entry.codec = (int)codec;
+						break;
+					case OP_VALIDATORS:
+						entry = __entries.get(fileName);
+						String eTag = readOptionalUTF(input);
+						String lastModified = readOptionalUTF(input);
+						String cacheControl = readOptionalUTF(input);
+						long validationTime = input.readLong();
+						if (entry != null) {
+							entry.eTag = eTag;
+							entry.lastModified = lastModified;
+							entry.cacheControl = cacheControl;
+							entry.validationTime = validationTime;
+						}
+						break;
+					case OP_ACCESS:
+						entry = __entries.get(fileName);
+						long lastAccessTime = input.readLong();
+						if (entry != null) entry.lastAccessTime = lastAccessTime;
+						break;
+					default:
+						F.warn("Unknown record type " + op + " in cache journal " + file + "; stopping");
+						hasFailed = true;
+						return true;
+				}
+
+				numRecords++;
+				isAtRecordEnd = true;
+			}
+		} catch (EOFException __e) {
+			// End of the journal: keep what was read
+			if (!isAtRecordEnd) {
+				// A record (or the header) was cut short by a crash; new records can't be appended after it
+				F.warn("Cache journal " + file + " ends with an incomplete record; it will be rewritten");
+				hasFailed = true;
+			}
+		} catch (IOException __e) {
+			F.warn("Error reading cache journal " + file + "! " + __e);
+			hasFailed = true;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException __e) {
+				}
+			}
+		}
+
+		return true;
+	}
+
+	public void rewrite(Collection<FileCacheEntry> __entries, Collection<String> __dirtyFileNames) {
+		// Compacts the journal, writing only the current state of each entry to a new file and replacing the old one
+		close();
+
+		File newFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+			writeHeader(out);
+			int numEntryRecords = 0;
+			for (FileCacheEntry entry:__entries) numEntryRecords += writeEntry(out, entry);
+			for (String fileName:__dirtyFileNames) {
+				out.writeByte(OP_DIRTY);
+				out.writeUTF(fileName);
+			}
+			out.close();
+			out = null;
+
+			if (!newFile.renameTo(file)) throw new IOException("Could not rename " + newFile + " to " + file);
+
+			numRecords = numEntryRecords + __dirtyFileNames.size();
+			hasFailed = false;
+		} catch (IOException __e) {
+			F.warn("Could not rewrite cache journal " + file + "! " + __e);
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException __e2) {
+				}
+			}
+			newFile.delete();
+			file.delete();
+			hasFailed = true;
+		}
+	}
+
+	public void putEntry(FileCacheEntry __entry) {
+		writeEntry(__entry);
+		flush();
+	}
+
+	public void removeEntry(String __fileName) {
+		writeRecord(OP_REMOVE, __fileName);
+		flush();
+	}
+
+	public void setDirty(String __fileName) {
+		writeRecord(OP_DIRTY, __fileName);
+		flush();
+	}
+
+	public void setExpirationTime(String __fileName, long __time) {
+		writeRecord(OP_EXPIRATION, __fileName, __time);
+		flush();
+	}
+
+	public void setValidators(FileCacheEntry __entry) {
+		if (hasFailed) return;
+
+		try {
+			writeValidators(getOutput(), __entry);
+			numRecords++;
+		} catch (IOException __e) {
+			F.warn("Could not write to cache journal " + file + "! " + __e);
+			hasFailed = true;
+			close();
+		}
+		flush();
+	}
+
+	public void setLastAccessTime(String __fileName, long __time) {
+		// Not flushed right away: FileCache saves access times in batches, and flushes once the batch is written
+		writeRecord(OP_ACCESS, __fileName, __time);
+	}
+
+	public void flush() {
+		if (output == null) return;
+		try {
+			output.flush();
+		} catch (IOException __e) {
+			F.warn("Could not flush cache journal " + file + "! " + __e);
+			hasFailed = true;
+			close();
+		}
+	}
+
+	public void close() {
+		if (output != null) {
+			try {
+				output.close();
+			} catch (IOException __e) {
+				F.warn("Could not close cache journal " + file + "! " + __e);
+			}
+			output = null;
+		}
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	public boolean getHasFailed() {
+		// If true, the journal doesn't reflect the cache state anymore and should be rewritten
+		return hasFailed;
+	}
+}
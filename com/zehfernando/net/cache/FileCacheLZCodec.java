@@ -0,0 +1,366 @@
+package com.zehfernando.net.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class FileCacheLZCodec extends FileCacheCodec {
+
+	/*
+	Fast LZ77 codec, in the style of LZ4, written in plain Java so it works everywhere without native code.
+
+	Content is split into blocks of up to BLOCK_SIZE bytes, each one compressed on its own:
+		byte type (BLOCK_STORED or BLOCK_COMPRESSED), int raw length, [int compressed length], data
+
+	Compressed data is a list of sequences:
+		byte token (high 4 bits: number of literals, low 4 bits: match length - MIN_MATCH; 15 means more length bytes follow)
+		[literal length bytes], literals, short offset (little endian), [match length bytes]
+	The last sequence of a block only has literals.
+	*/
+
+	// Constants
+	protected static final int BLOCK_SIZE = 65536;
+	protected static final byte BLOCK_STORED = 0;
+	protected static final byte BLOCK_COMPRESSED = 1;
+
+	protected static final int MIN_MATCH = 4;
+	protected static final int MAX_OFFSET = 65535;
+	protected static final int LAST_LITERALS = 5;				// Minimum number of literals at the end of a block
+	protected static final int HASH_BITS = 12;
+
+	// ================================================================================================================
+	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public static int getMaxCompressedLength(int __length) {
+		// Worst case, when nothing can be compressed
+		return __length + __length / 255 + 16;
+	}
+
+	public static int compress(byte[] __src, int __length, byte[] __dst, int[] __hashTable) {
+		// Compresses __length bytes from __src into __dst (at least getMaxCompressedLength() bytes long); returns the
+		// number of bytes written. __hashTable must have (1 << HASH_BITS) items
+		Arrays.fill(__hashTable, -1);
+
+		int srcPos = 0;
+		int dstPos = 0;
+		int anchor = 0;
+		int matchLimit = __length - LAST_LITERALS;
+
+		int sequence;
+		int hash;
+		int ref;
+		int matchLength;
+
+		while (srcPos + MIN_MATCH <= matchLimit) {
+			sequence = readInt(__src, srcPos);
+			hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			ref = __hashTable[hash];
+			__hashTable[hash] = srcPos;
+
+			if (ref < 0 || srcPos - ref > MAX_OFFSET || readInt(__src, ref) != sequence) {
+				srcPos++;
+				continue;
+			}
+
+			matchLength = MIN_MATCH;
+			while (srcPos + matchLength < matchLimit && __src[ref + matchLength] == __src[srcPos + matchLength]) matchLength++;
+
+			dstPos = writeSequence(__dst, dstPos, __src, anchor, srcPos - anchor, srcPos - ref, matchLength);
+
+			srcPos += matchLength;
+			anchor = srcPos;
+		}
+
+		return writeSequence(__dst, dstPos, __src, anchor, __length - anchor, 0, 0);
+	}
+
+	public static void decompress(byte[] __src, int __length, byte[] __dst, int __dstLength) throws IOException {
+		// Decompresses __length bytes from __src, which must expand to exactly __dstLength bytes in __dst
+		int srcPos = 0;
+		int dstPos = 0;
+
+		int token;
+		int literalLength;
+		int matchLength;
+		int offset;
+		int b;
+
+		try {
+			while (srcPos < __length) {
+				token = __src[srcPos++] & 0xff;
+
+				literalLength = token >>> 4;
+				if (literalLength == 15) {
+					do {
+						b = __src[srcPos++] & 0xff;
+						literalLength += b;
+					} while (b == 255);
+				}
+
+				System.arraycopy(__src, srcPos, __dst, dstPos, literalLength);
+				srcPos += literalLength;
+				dstPos += literalLength;
+
+				// Last sequence
+				if (srcPos >= __length) break;
+
+				offset = (__src[srcPos++] & 0xff) | ((__src[srcPos++] & 0xff) << 8);
+
+				matchLength = token & 0x0f;
+				if (matchLength == 15) {
+					do {
+						b = __src[srcPos++] & 0xff;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				if (offset == 0 || offset > dstPos || dstPos + matchLength > __dstLength) throw new IOException("Invalid match in LZ block");
+
+				// Copied byte by byte, since the match can overlap the bytes being written
+				for (int i = dstPos - offset, end = dstPos + matchLength; dstPos < end; i++) __dst[dstPos++] = __dst[i];
+			}
+		} catch (IndexOutOfBoundsException __e) {
+			throw new IOException("Corrupted LZ block");
+		}
+
+		if (dstPos != __dstLength) throw new IOException("LZ block has " + dstPos + " bytes instead of " + __dstLength);
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private static int readInt(byte[] __buffer, int __pos) {
+		return (__buffer[__pos] & 0xff) | ((__buffer[__pos + 1] & 0xff) << 8) | ((__buffer[__pos + 2] & 0xff) << 16) | ((__buffer[__pos + 3] & 0xff) << 24);
+	}
+
+	private static int writeLength(byte[] __dst, int __pos, int __length) {
+		while (__length >= 255) {
+			__dst[__pos++] = (byte)255;
+			__length -= 255;
+		}
+		__dst[__pos++] = (byte)__length;
+		return __pos;
+	}
+
+	private static int writeSequence(byte[] __dst, int __pos, byte[] __src, int __literalStart, int __literalLength, int __offset, int __matchLength) {
+		// A __matchLength of 0 means it's the last sequence, with literals only
+		int tokenPos = __pos++;
+		int token = (__literalLength >= 15 ? 15 : __literalLength) << 4;
+
+		if (__literalLength >= 15) __pos = writeLength(__dst, __pos, __literalLength - 15);
+		System.arraycopy(__src, __literalStart, __dst, __pos, __literalLength);
+		__pos += __literalLength;
+
+		if (__matchLength > 0) {
+			__dst[__pos++] = (byte)__offset;
+			__dst[__pos++] = (byte)(__offset >>> 8);
+
+			int length = __matchLength - MIN_MATCH;
+			token |= length >= 15 ? 15 : length;
+			if (length >= 15) __pos = writeLength(__dst, __pos, length - 15);
+		}
+
+		__dst[tokenPos] = (byte)token;
+		return __pos;
+	}
+
+	private static void writeInt(OutputStream __output, int __value) throws IOException {
+		__output.write(__value >>> 24);
+		__output.write(__value >>> 16);
+		__output.write(__value >>> 8);
+		__output.write(__value);
+	}
+
+	private static int readInt(InputStream __input) throws IOException {
+		int value = 0;
+		int b;
+		for (int i = 0; i < 4; i++) {
+			b = __input.read();
+			if (b < 0) throw new EOFException("LZ block header was cut short");
+			value = (value << 8) | b;
+		}
+		return value;
+	}
+
+	private static void readFully(InputStream __input, byte[] __buffer, int __length) throws IOException {
+		int pos = 0;
+		int read;
+		while (pos < __length) {
+			read = __input.read(__buffer, pos, __length - pos);
+			if (read < 0) throw new EOFException("LZ block was cut short");
+			pos += read;
+		}
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	@Override
+	public int getId() {
+		return LZ;
+	}
+
+	@Override
+	public OutputStream getOutputStream(OutputStream __output) {
+		return new LZOutputStream(__output);
+	}
+
+	@Override
+	public InputStream getInputStream(InputStream __input) {
+		return new LZInputStream(__input);
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class LZOutputStream extends OutputStream {
+
+		private final OutputStream output;
+		private final byte[] block;
+		private final byte[] compressedBlock;
+		private final int[] hashTable;
+		private int blockLength;
+		private boolean isClosed;
+
+		public LZOutputStream(OutputStream __output) {
+			output = __output;
+			block = new byte[BLOCK_SIZE];
+			compressedBlock = new byte[getMaxCompressedLength(BLOCK_SIZE)];
+			hashTable = new int[1 << HASH_BITS];
+			blockLength = 0;
+			isClosed = false;
+		}
+
+		private void writeBlock() throws IOException {
+			if (blockLength == 0) return;
+
+			int compressedLength = compress(block, blockLength, compressedBlock, hashTable);
+			if (compressedLength < blockLength) {
+				output.write(BLOCK_COMPRESSED);
+				writeInt(output, blockLength);
+				writeInt(output, compressedLength);
+				output.write(compressedBlock, 0, compressedLength);
+			} else {
+				output.write(BLOCK_STORED);
+				writeInt(output, blockLength);
+				output.write(block, 0, blockLength);
+			}
+
+			blockLength = 0;
+		}
+
+		@Override
+		public void write(int __b) throws IOException {
+			if (blockLength == BLOCK_SIZE) writeBlock();
+			block[blockLength++] = (byte)__b;
+		}
+
+		@Override
+		public void write(byte[] __buffer, int __offset, int __length) throws IOException {
+			int length;
+			while (__length > 0) {
+				if (blockLength == BLOCK_SIZE) writeBlock();
+				length = Math.min(__length, BLOCK_SIZE - blockLength);
+				System.arraycopy(__buffer, __offset, block, blockLength, length);
+				blockLength += length;
+				__offset += length;
+				__length -= length;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// Only writes full blocks, so flushing doesn't hurt compression
+			output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (isClosed) return;
+			isClosed = true;
+
+			try {
+				writeBlock();
+			} finally {
+				output.close();
+			}
+		}
+	}
+
+	private static class LZInputStream extends InputStream {
+
+		private final InputStream input;
+		private final byte[] block;
+		private byte[] compressedBlock;
+		private int blockLength;
+		private int blockPos;
+		private boolean isFinished;
+
+		public LZInputStream(InputStream __input) {
+			input = __input;
+			block = new byte[BLOCK_SIZE];
+			compressedBlock = null;
+			blockLength = 0;
+			blockPos = 0;
+			isFinished = false;
+		}
+
+		private boolean readBlock() throws IOException {
+			// Returns false at the end of the content
+			int type = input.read();
+			if (type < 0) {
+				isFinished = true;
+				return false;
+			}
+
+			int length = readInt(input);
+			if (length <= 0 || length > BLOCK_SIZE) throw new IOException("Invalid LZ block length " + length);
+
+			if (type == BLOCK_STORED) {
+				readFully(input, block, length);
+			} else if (type == BLOCK_COMPRESSED) {
+				int compressedLength = readInt(input);
+				if (compressedLength <= 0 || compressedLength > getMaxCompressedLength(BLOCK_SIZE)) throw new IOException("Invalid LZ block length " + compressedLength);
+				if (compressedBlock == null) compressedBlock = new byte[getMaxCompressedLength(BLOCK_SIZE)];
+				readFully(input, compressedBlock, compressedLength);
+				decompress(compressedBlock, compressedLength, block, length);
+			} else {
+				throw new IOException("Unknown LZ block type " + type);
+			}
+
+			blockLength = length;
+			blockPos = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (blockPos == blockLength && (isFinished || !readBlock())) return -1;
+			return block[blockPos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] __buffer, int __offset, int __length) throws IOException {
+			if (__length == 0) return 0;
+			if (blockPos == blockLength && (isFinished || !readBlock())) return -1;
+
+			int length = Math.min(__length, blockLength - blockPos);
+			System.arraycopy(block, blockPos, __buffer, __offset, length);
+			blockPos += length;
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return blockLength - blockPos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package com.zehfernando.net.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class FileCacheStats {
+
+	/*
+	Counters of the activity of a FileCache since it was created (or since its stats were last reset), used to tune
+	cache budgets.
+
+	Usage:
+
+		FileCacheStats stats = fileCache.getStats();	// Snapshot; doesn't change afterwards
+		F.debug("Hit rate is " + stats.getHitRate() + ", median get time is " + stats.getGetLatency().getPercentile(0.5f) + "us");
+		fileCache.resetStats();
+
+	Reads are counted by getFile(), getFileDecoded(), getFileAsStream(), getFileAsString(), getFileAsCharSequence(),
+	getFileAsByteBuffer() and getFilePathIfExists(). Puts are counted when a file is committed.
+	*/
+
+	// Properties
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong puts;
+	private final AtomicLong evictions;			// Files deleted to keep the cache within its size and file number limits
+	private final AtomicLong expirations;		// Files deleted because they expired, or were older than the age asked for
+	private final AtomicLong bytesRead;			// Decoded bytes returned to callers
+	private final AtomicLong bytesWritten;		// Bytes written to the disk, after encoding
+	private final LatencyHistogram getLatency;
+	private final LatencyHistogram putLatency;
+
+	private long startTime;						// When counting started, in ms
+
+	// Only set in snapshots
+	private long totalSize;
+	private long logicalSize;
+	private int numFiles;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	FileCacheStats() {
+		hits = new AtomicLong(0);
+		misses = new AtomicLong(0);
+		puts = new AtomicLong(0);
+		evictions = new AtomicLong(0);
+		expirations = new AtomicLong(0);
+		bytesRead = new AtomicLong(0);
+		bytesWritten = new AtomicLong(0);
+		getLatency = new LatencyHistogram();
+		putLatency = new LatencyHistogram();
+		startTime = System.currentTimeMillis();
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	void recordGet(boolean __isHit, long __startNanoTime) {
+		if (__isHit) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		getLatency.record(System.nanoTime() - __startNanoTime);
+	}
+
+	void recordPut(long __bytes, long __startNanoTime) {
+		puts.incrementAndGet();
+		bytesWritten.addAndGet(__bytes);
+		putLatency.record(System.nanoTime() - __startNanoTime);
+	}
+
+	void recordBytesRead(long __bytes) {
+		bytesRead.addAndGet(__bytes);
+	}
+
+	void recordEviction() {
+		evictions.incrementAndGet();
+	}
+
+	void recordExpiration() {
+		expirations.incrementAndGet();
+	}
+
+	synchronized FileCacheStats getSnapshot(long __totalSize, long __logicalSize, int __numFiles) {
+		// Counters are copied one by one, so a snapshot taken while the cache is being used can be off by a few operations
+		FileCacheStats snapshot = new FileCacheStats();
+		snapshot.hits.set(hits.get());
+		snapshot.misses.set(misses.get());
+		snapshot.puts.set(puts.get());
+		snapshot.evictions.set(evictions.get());
+		snapshot.expirations.set(expirations.get());
+		snapshot.bytesRead.set(bytesRead.get());
+		snapshot.bytesWritten.set(bytesWritten.get());
+		snapshot.getLatency.copyFrom(getLatency);
+		snapshot.putLatency.copyFrom(putLatency);
+		snapshot.startTime = startTime;
+		snapshot.totalSize = __totalSize;
+		snapshot.logicalSize = __logicalSize;
+		snapshot.numFiles = __numFiles;
+		return snapshot;
+	}
+
+	synchronized void reset() {
+		hits.set(0);
+		misses.set(0);
+		puts.set(0);
+		evictions.set(0);
+		expirations.set(0);
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		getLatency.reset();
+		putLatency.reset();
+		startTime = System.currentTimeMillis();
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	@Override
+	public String toString() {
+		return "[FileCacheStats hits=" + getHits() + " misses=" + getMisses() + " puts=" + getPuts() + " evictions=" + getEvictions() + " expirations=" + getExpirations() + " bytesRead=" + getBytesRead() + " bytesWritten=" + getBytesWritten() + " get=" + getLatency + " put=" + putLatency + " files=" + numFiles + " size=" + totalSize + "]";
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public float getHitRate() {
+		// Ratio of reads that found the file, from 0 to 1
+		long total = getHits() + getMisses();
+		return total == 0 ? 0 : (float)getHits() / total;
+	}
+
+	public long getPuts() {
+		return puts.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public LatencyHistogram getGetLatency() {
+		// Time taken to find and open (or read, for getFileAsByteBuffer() and getFileAsString()) files
+		return getLatency;
+	}
+
+	public LatencyHistogram getPutLatency() {
+		// Time from edit() to commit(), including the time taken by the caller to write the content
+		return putLatency;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getTotalSize() {
+		// Size of the cache on disk when the snapshot was taken, in bytes
+		return totalSize;
+	}
+
+	public long getLogicalSize() {
+		return logicalSize;
+	}
+
+	public int getNumFiles() {
+		return numFiles;
+	}
+
+	public float getDeduplicationRatio() {
+		return totalSize == 0 ? 1 : (float)logicalSize / totalSize;
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	public static class LatencyHistogram {
+
+		/*
+		Counts of durations in buckets with power-of-two bounds, in microseconds: bucket 0 has durations below 1us,
+		bucket i has durations from 2^(i-1) to 2^i us, and the last bucket has everything longer. Recording doesn't
+		allocate or lock.
+		*/
+
+		// Constants
+		public static final int NUM_BUCKETS = 24;		// Last bounded bucket ends at ~4.2s
+
+		// Properties
+		private final AtomicLongArray buckets;
+		private final AtomicLong totalTime;				// In us
+
+		LatencyHistogram() {
+			buckets = new AtomicLongArray(NUM_BUCKETS);
+			totalTime = new AtomicLong(0);
+		}
+
+		void record(long __nanoTime) {
+			long time = Math.max(0, __nanoTime / 1000);
+			int bucket = time == 0 ? 0 : 64 - Long.numberOfLeadingZeros(time);
+			buckets.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+			totalTime.addAndGet(time);
+		}
+
+		void copyFrom(LatencyHistogram __histogram) {
+			for (int i = 0; i < NUM_BUCKETS; i++) buckets.set(i, __histogram.buckets.get(i));
+			totalTime.set(__histogram.totalTime.get());
+		}
+
+		void reset() {
+			for (int i = 0; i < NUM_BUCKETS; i++) buckets.set(i, 0);
+			totalTime.set(0);
+		}
+
+		public long getPercentile(float __percentile) {
+			// Upper bound of the bucket with the given percentile (0-1) of the durations, in us; -1 if nothing was recorded
+			long count = getCount();
+			if (count == 0) return -1;
+
+			long target = (long)Math.ceil(count * Math.max(0, Math.min(1, __percentile)));
+			long seen = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= target && seen > 0) return getBucketUpperBound(i);
+			}
+			return getBucketUpperBound(NUM_BUCKETS - 1);
+		}
+
+		@Override
+		public String toString() {
+			return "[count=" + getCount() + " mean=" + getMean() + "us p50=" + getPercentile(0.5f) + "us p90=" + getPercentile(0.9f) + "us p99=" + getPercentile(0.99f) + "us]";
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) count += buckets.get(i);
+			return count;
+		}
+
+		public long getTotalTime() {
+			// In us
+			return totalTime.get();
+		}
+
+		public long getMean() {
+			// In us
+			long count = getCount();
+			return count == 0 ? 0 : totalTime.get() / count;
+		}
+
+		public long getBucketCount(int __bucket) {
+			return buckets.get(__bucket);
+		}
+
+		public static long getBucketUpperBound(int __bucket) {
+			// In us; Long.MAX_VALUE for the last bucket
+			return __bucket >= NUM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << __bucket;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.zehfernando.net.loaders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import android.os.Build;
+
+import com.zehfernando.utils.F;
+
+public class ConnectionManager {
+
+	/*
+	Opens and releases the connections used by Loader and TextLoader, so they can be reused.
+
+	HttpURLConnection keeps finished connections in a pool, per host, and reuses them for the next request to the same
+	host; but a connection only goes back to the pool once its response has been read to the end and closed. Responses
+	that are abandoned halfway (errors, cancelled loads, 304s) keep their socket busy until it's garbage collected, and
+	force a new connection (DNS, TCP and TLS handshakes) on the next request.
+
+	Usage:
+
+		URLConnection connection = ConnectionManager.getConnectionManager().openConnection(url);
+		(...)
+		ConnectionManager.getConnectionManager().releaseConnection(connection, inputStream);
+
+	The size of the pool is a system-wide setting read when the first connection is made, so setMaxConnectionsPerHost()
+	should be called when the application starts.
+	*/
+
+	// Constants
+	protected static final int DEFAULT_CONNECT_TIMEOUT = 3000;		// In ms
+	protected static final int DEFAULT_READ_TIMEOUT = 20000;		// Maximum time without receiving data, in ms
+	protected static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = DownloadScheduler.DEFAULT_MAX_THREADS;	// So every download thread can keep one
+	protected static final int MAX_DRAIN_BYTES = 64 * 1024;			// Responses with more than this left are closed instead of drained
+	protected static final int DRAIN_BUFFER_SIZE = 4096;
+
+	private static final int VERSION_CODES_FROYO = 8; // Build.VERSION_CODES.FROYO
+
+	// Static properties
+	private static ConnectionManager connectionManager;
+
+	// Properties
+	private int connectTimeout;
+	private int readTimeout;
+	private int maxConnectionsPerHost;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public ConnectionManager() {
+		connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+		readTimeout = DEFAULT_READ_TIMEOUT;
+
+		// Before Froyo, reusing a connection could corrupt it (the pool was shared with connections that had been closed
+		// halfway), so keep-alive is disabled there
+		if (Build.VERSION.SDK_INT < VERSION_CODES_FROYO) System.setProperty("http.keepAlive", "false");
+
+		// A pool size set by the application itself is kept
+		maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+		try {
+			String maxConnections = System.getProperty("http.maxConnections");
+			if (maxConnections == null) {
+				setMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+			} else {
+				maxConnectionsPerHost = Integer.parseInt(maxConnections);
+			}
+		} catch (NumberFormatException __e) {
+			setMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		}
+	}
+
+	// ================================================================================================================
+	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public static synchronized ConnectionManager getConnectionManager() {
+		// Shared instance, used by Loader and TextLoader
+		if (connectionManager == null) connectionManager = new ConnectionManager();
+		return connectionManager;
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private static boolean drain(InputStream __input) {
+		// Reads what's left of a response, so its connection can be reused; returns false if it's too long, or broken
+		byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+		int drainedBytes = 0;
+		int read;
+		try {
+			while ((read = __input.read(buffer, 0, buffer.length)) != -1) {
+				drainedBytes += read;
+				if (drainedBytes > MAX_DRAIN_BYTES) return false;
+			}
+			return true;
+		} catch (IOException __e) {
+			return false;
+		}
+	}
+
+	private static void close(InputStream __input) {
+		try {
+			__input.close();
+		} catch (IOException __e) {
+		}
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public URLConnection openConnection(URL __url) throws IOException {
+		// Opens a connection to __url with the current timeouts; HTTP connections are reused when possible
+		URLConnection connection = __url.openConnection();
+		connection.setConnectTimeout(getConnectTimeout());
+		connection.setReadTimeout(getReadTimeout());
+		if (connection instanceof HttpURLConnection) connection.setRequestProperty("Connection", "Keep-Alive");
+		return connection;
+	}
+
+	public void releaseConnection(URLConnection __connection, InputStream __input) {
+		// Finishes using a connection: the rest of the response (from __input, or from the error stream if there's no
+		// input) is read and closed, so the connection goes back to the pool; if that would take too long, the connection
+		// is closed instead
+		if (!(__connection instanceof HttpURLConnection)) {
+			if (__input != null) close(__input);
+			return;
+		}
+
+		HttpURLConnection connection = (HttpURLConnection)__connection;
+		InputStream input = __input != null ? __input : connection.getErrorStream();
+
+		boolean isReusable = input == null || drain(input);
+		if (input != null) close(input);
+
+		if (!isReusable) {
+			F.debug("Response from " + connection.getURL().getHost() + " was not fully read; closing connection");
+			connection.disconnect();
+		}
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public synchronized int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public synchronized void setConnectTimeout(int __connectTimeout) {
+		// Maximum time to wait for a new connection to be established, in ms (0 waits forever)
+		connectTimeout = Math.max(0, __connectTimeout);
+	}
+
+	public synchronized int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public synchronized void setReadTimeout(int __readTimeout) {
+		// Maximum time to wait for data from a connection, in ms (0 waits forever)
+		readTimeout = Math.max(0, __readTimeout);
+	}
+
+	public synchronized int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public synchronized void setMaxConnectionsPerHost(int __maxConnectionsPerHost) {
+		// Maximum number of idle connections kept for reuse per host (on newer Android versions, for all hosts); it only
+		// has effect before the first connection is made, and shouldn't be lower than DownloadScheduler.getMaxThreads()
+		maxConnectionsPerHost = Math.max(1, __maxConnectionsPerHost);
+		System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerHost));
+	}
+}
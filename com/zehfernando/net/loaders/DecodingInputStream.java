@@ -0,0 +1,184 @@
+package com.zehfernando.net.loaders;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.zehfernando.utils.F;
+
+public class DecodingInputStream extends FilterInputStream {
+
+	/*
+	Decodes the body of an HTTP response sent with a Content-Encoding (gzip or deflate), as it's read, and counts both
+	the bytes that came through the connection ("wire" bytes, comparable to Content-Length) and the decoded bytes.
+
+	Usage:
+
+		connection.setRequestProperty("Accept-Encoding", DecodingInputStream.ACCEPT_ENCODING);
+		(...)
+		DecodingInputStream input = new DecodingInputStream(connection.getInputStream(), connection.getContentEncoding());
+		(read from input...)
+		input.getWireBytes(); // vs connection.getContentLength()
+
+	Setting Accept-Encoding also stops Android's HttpURLConnection from decoding gzip on its own, which hides the real
+	Content-Length and so makes progress unknown.
+	*/
+
+	// Constants
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	protected static final int BUFFER_SIZE = 8192;
+
+	// Properties
+	private final CountingInputStream wireStream;
+	private Inflater inflater;						// Only for deflate; streams don't release inflaters passed to them
+	private int decodedBytes;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public DecodingInputStream(InputStream __input, String __contentEncoding) throws IOException {
+		super(null);
+
+		wireStream = new CountingInputStream(__input);
+		inflater = null;
+		decodedBytes = 0;
+
+		in = getDecodedInputStream(wireStream, __contentEncoding);
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private InputStream getDecodedInputStream(InputStream __input, String __contentEncoding) throws IOException {
+		String encoding = __contentEncoding == null ? "" : __contentEncoding.trim().toLowerCase(Locale.US);
+		if (encoding.length() == 0 || encoding.equals("identity")) return __input;
+
+		boolean isGzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+		if (!isGzip && !encoding.equals("deflate")) {
+			F.warn("Unknown content encoding [" + __contentEncoding + "]; content will not be decoded");
+			return __input;
+		}
+
+		// Peeks at the start of the content: empty bodies (e.g. HEAD, 204) have no header to read, and some servers
+		// send deflate content without the zlib header
+		PushbackInputStream input = new PushbackInputStream(__input, 2);
+		byte[] header = new byte[2];
+		int headerLength = 0;
+		int read;
+		while (headerLength < header.length && (read = input.read(header, headerLength, header.length - headerLength)) != -1) headerLength += read;
+		if (headerLength == 0) return input;
+		input.unread(header, 0, headerLength);
+
+		if (isGzip) return new GZIPInputStream(input, BUFFER_SIZE);
+
+		inflater = new Inflater(!getHasZlibHeader(header, headerLength));
+		return new InflaterInputStream(input, inflater, BUFFER_SIZE);
+	}
+
+	private static boolean getHasZlibHeader(byte[] __header, int __length) {
+		// Compression method 8 (deflate), and a header checksum (RFC 1950)
+		if (__length < 2) return false;
+		int cmf = __header[0] & 0xff;
+		int flg = __header[1] & 0xff;
+		return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	@Override
+	public int read() throws IOException {
+		int value = in.read();
+		if (value != -1) decodedBytes++;
+		return value;
+	}
+
+	@Override
+	public int read(byte[] __buffer, int __offset, int __length) throws IOException {
+		int read = in.read(__buffer, __offset, __length);
+		if (read > 0) decodedBytes += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long __length) throws IOException {
+		long skipped = in.skip(__length);
+		if (skipped > 0) decodedBytes += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public int getWireBytes() {
+		// Bytes read from the connection so far
+		return wireStream.count;
+	}
+
+	public int getDecodedBytes() {
+		// Bytes of decoded content read so far
+		return decodedBytes;
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private int count;
+
+		public CountingInputStream(InputStream __input) {
+			super(__input);
+			count = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = in.read();
+			if (value != -1) count++;
+			return value;
+		}
+
+		@Override
+		public int read(byte[] __buffer, int __offset, int __length) throws IOException {
+			int read = in.read(__buffer, __offset, __length);
+			if (read > 0) count += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long __length) throws IOException {
+			long skipped = in.skip(__length);
+			if (skipped > 0) count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package com.zehfernando.net.loaders;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import android.os.Process;
+
+import com.zehfernando.utils.F;
+
+public class DownloadScheduler {
+
+	/*
+	Runs downloads on a bounded pool of low priority threads, shared by Loader and TextLoader, instead of one thread per
+	request. Jobs wait in one queue per priority and are started highest priority first, in the order they were
+	submitted, while respecting a limit of simultaneous downloads per host.
+
+	Usage:
+
+		DownloadScheduler.Job job = DownloadScheduler.getDownloadScheduler().submit(url, DownloadScheduler.PRIORITY_PREFETCH, runnable);
+
+		// When the view that needed it becomes visible
+		job.setPriority(DownloadScheduler.PRIORITY_VISIBLE);
+
+		// When the view that needed it is recycled; does nothing if the job is already running
+		job.cancel();
+
+	Cancelling a running job only marks it as cancelled: runnables should check getCurrentJob().getIsCancelled() while
+	they work.
+	*/
+
+	// Constants
+	public static final int PRIORITY_VISIBLE = 0;					// Content the user is looking at (e.g. images on screen)
+	public static final int PRIORITY_PREFETCH = 1;					// Content the user will probably need soon
+	public static final int PRIORITY_BACKGROUND = 2;				// Content the user is not waiting for (e.g. syncing)
+	protected static final int NUM_PRIORITIES = 3;
+
+	protected static final int DEFAULT_MAX_THREADS = 4;
+	protected static final int DEFAULT_MAX_THREADS_PER_HOST = 2;
+	protected static final long THREAD_KEEP_ALIVE_TIME = 30000;	// Time idle threads wait for new jobs before ending, in ms
+
+	// Static properties
+	private static DownloadScheduler downloadScheduler;
+	private static final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();	// Job running on each worker thread
+
+	// Properties
+	private final ArrayList<LinkedList<Job>> queues;				// Jobs waiting to start, by priority
+	private final HashMap<String, Integer> runningJobsByHost;
+	private int maxThreads;
+	private int maxThreadsPerHost;
+	private int numThreads;
+	private int numIdleThreads;
+	private int numThreadsCreated;									// Used for thread names
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public DownloadScheduler() {
+		queues = new ArrayList<LinkedList<Job>>();
+		for (int i = 0; i < NUM_PRIORITIES; i++) queues.add(new LinkedList<Job>());
+		runningJobsByHost = new HashMap<String, Integer>();
+
+		maxThreads = DEFAULT_MAX_THREADS;
+		maxThreadsPerHost = DEFAULT_MAX_THREADS_PER_HOST;
+		numThreads = 0;
+		numIdleThreads = 0;
+		numThreadsCreated = 0;
+	}
+
+	// ================================================================================================================
+	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public static synchronized DownloadScheduler getDownloadScheduler() {
+		// Shared instance, used by Loader and TextLoader
+		if (downloadScheduler == null) downloadScheduler = new DownloadScheduler();
+		return downloadScheduler;
+	}
+
+	public static Job getCurrentJob() {
+		// Job being run by the current thread, or null if not called from a job
+		return currentJob.get();
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private static int getValidPriority(int __priority) {
+		return Math.max(0, Math.min(NUM_PRIORITIES - 1, __priority));
+	}
+
+	private static String getHost(String __url) {
+		// Jobs without a host (local files, invalid URLs) are not limited per host
+		try {
+			String host = new URL(__url).getHost();
+			return host == null || host.length() == 0 ? null : host.toLowerCase(Locale.US);
+		} catch (MalformedURLException __e) {
+			return null;
+		}
+	}
+
+	private boolean getIsHostAvailable(String __host) {
+		// Must be called while synchronized
+		if (__host == null) return true;
+		Integer numRunning = runningJobsByHost.get(__host);
+		return numRunning == null || numRunning < maxThreadsPerHost;
+	}
+
+	private Job getNextJob() {
+		// Removes and returns the first job that can start now, or null if none; must be called while synchronized
+		for (LinkedList<Job> queue:queues) {
+			for (int i = 0; i < queue.size(); i++) {
+				Job job = queue.get(i);
+				if (getIsHostAvailable(job.host)) {
+					queue.remove(i);
+					return job;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void startThread() {
+		// Must be called while synchronized
+		numThreads++;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWorker();
+			}
+		}, "DownloadScheduler #" + (++numThreadsCreated));
+		thread.start();
+	}
+
+	private synchronized Job takeJob() {
+		// Waits for a job that can start, or returns null if none came in a while and the thread should end
+		long timeLimit = System.currentTimeMillis() + THREAD_KEEP_ALIVE_TIME;
+		Job job;
+		long timeLeft;
+
+		while ((job = getNextJob()) == null) {
+			timeLeft = timeLimit - System.currentTimeMillis();
+			if (timeLeft <= 0 || numThreads > maxThreads) {
+				numThreads--;
+				return null;
+			}
+
+			numIdleThreads++;
+			try {
+				wait(timeLeft);
+			} catch (InterruptedException __e) {
+				numIdleThreads--;
+				numThreads--;
+				return null;
+			}
+			numIdleThreads--;
+		}
+
+		job.state = Job.STATE_RUNNING;
+		if (job.host != null) {
+			Integer numRunning = runningJobsByHost.get(job.host);
+			runningJobsByHost.put(job.host, numRunning == null ? 1 : numRunning + 1);
+		}
+		return job;
+	}
+
+	private synchronized void finishJob(Job __job) {
+		__job.state = Job.STATE_FINISHED;
+		if (__job.host != null) {
+			int numRunning = runningJobsByHost.get(__job.host) - 1;
+			if (numRunning > 0) {
+				runningJobsByHost.put(__job.host, numRunning);
+			} else {
+				runningJobsByHost.remove(__job.host);
+			}
+
+			// A job waiting for this host may be able to start now
+			notifyAll();
+		}
+	}
+
+	private void runWorker() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		Job job;
+		while ((job = takeJob()) != null) {
+			currentJob.set(job);
+			try {
+				if (!job.isCancelled) job.runnable.run();
+			} catch (RuntimeException __e) {
+				F.error("Error running download of [" + job.url + "]! " + __e);
+			} finally {
+				currentJob.remove();
+				finishJob(job);
+			}
+		}
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public synchronized Job submit(String __url, int __priority, Runnable __runnable) {
+		// Queues __runnable to be run on a worker thread; __url is used to limit the downloads per host
+		Job job = new Job(this, __url, getHost(__url), getValidPriority(__priority), __runnable);
+		queues.get(job.priority).add(job);
+
+		if (numIdleThreads > 0) {
+			notifyAll();
+		} else if (numThreads < maxThreads) {
+			startThread();
+		}
+		return job;
+	}
+
+	public synchronized int getNumQueuedJobs() {
+		int numJobs = 0;
+		for (LinkedList<Job> queue:queues) numJobs += queue.size();
+		return numJobs;
+	}
+
+	public synchronized int getNumQueuedJobs(int __priority) {
+		return queues.get(getValidPriority(__priority)).size();
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public synchronized void setMaxThreads(int __maxThreads) {
+		// Maximum number of simultaneous downloads; extra threads end after their current job
+		maxThreads = Math.max(1, __maxThreads);
+		int numNewThreads = Math.min(maxThreads - numThreads, getNumQueuedJobs() - numIdleThreads);
+		for (int i = 0; i < numNewThreads; i++) startThread();
+		notifyAll();
+	}
+
+	public synchronized int getMaxThreadsPerHost() {
+		return maxThreadsPerHost;
+	}
+
+	public synchronized void setMaxThreadsPerHost(int __maxThreadsPerHost) {
+		// Maximum number of simultaneous downloads from the same host
+		maxThreadsPerHost = Math.max(1, __maxThreadsPerHost);
+		notifyAll();
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	public static class Job {
+
+		// A download submitted to a DownloadScheduler
+
+		// Constants
+		public static final int STATE_QUEUED = 0;
+		public static final int STATE_RUNNING = 1;
+		public static final int STATE_FINISHED = 2;
+
+		// Properties
+		private final DownloadScheduler scheduler;
+		private final String url;
+		private final String host;
+		private final Runnable runnable;
+		private int priority;
+		private int state;
+		private volatile boolean isCancelled;
+
+		Job(DownloadScheduler __scheduler, String __url, String __host, int __priority, Runnable __runnable) {
+			scheduler = __scheduler;
+			url = __url;
+			host = __host;
+			priority = __priority;
+			runnable = __runnable;
+			state = STATE_QUEUED;
+			isCancelled = false;
+		}
+
+		public boolean cancel() {
+			// Cancels the job; returns true if it was still queued, and so will never run
+			synchronized (scheduler) {
+				isCancelled = true;
+				if (state != STATE_QUEUED) return false;
+				scheduler.queues.get(priority).remove(this);
+				state = STATE_FINISHED;
+				return true;
+			}
+		}
+
+		public void setPriority(int __priority) {
+			// Moves a queued job to the end of the queue of another priority; running jobs are not affected
+			synchronized (scheduler) {
+				__priority = getValidPriority(__priority);
+				if (state != STATE_QUEUED || __priority == priority) return;
+
+				scheduler.queues.get(priority).remove(this);
+				priority = __priority;
+				scheduler.queues.get(priority).add(this);
+			}
+		}
+
+		public int getPriority() {
+			synchronized (scheduler) {
+				return priority;
+			}
+		}
+
+		public int getState() {
+			synchronized (scheduler) {
+				return state;
+			}
+		}
+
+		public boolean getIsCancelled() {
+			return isCancelled;
+		}
+
+		public String getURL() {
+			return url;
+		}
+	}
+}
@@ -3,31 +3,58 @@ package com.zehfernando.net.loaders;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.zehfernando.net.cache.FileCache;
+import com.zehfernando.net.cache.FileCacheEditor;
 import com.zehfernando.utils.F;
 
 public class Loader {
 
 	/* Asynchronous loader for binary files (like images) */
 
+	// Constants
+	protected static final String PARTIAL_ID_PREFIX = "partial:";					// Prefix of the cache ids of partial content
+	protected static final long PARTIAL_CONTENT_MAX_AGE = 24 * 60 * 60 * 1000;		// Time partial content is kept to be resumed, in ms
+	protected static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
+
 	// Properties
 	private String url;
 	private byte[] data;
 
 	private boolean isLoading;
 	private boolean isLoaded;
-	private int loadedBytes;
+	private int loadedBytes;					// Bytes received, as sent by the server (possibly compressed)
 	private int totalBytes;
+	private int decodedBytes;					// Bytes of content, after decoding the transfer encoding
+
+	private OutputStream outputStream;			// If set, loaded bytes are also written to this stream as they arrive
+	private boolean keepsData;					// If false, loaded bytes are not kept in memory (only written to outputStream)
+
+	private String ifNoneMatch;					// Validators of a cached version, sent to only download the content if it changed
+	private String ifModifiedSince;
+	private int responseCode;					// HTTP status of the response, or -1 if not known
+	private String responseETag;				// Validators of the response, to be stored with it in a cache
+	private String responseLastModified;
+	private String responseCacheControl;
 
-	private DownloadFilesTask downloadTask;
+	private FileCache resumeCache;				// If set, content is kept here while it loads, so failed loads can be resumed
+
+	private int priority;						// Priority in the DownloadScheduler
+	private DownloadScheduler.Job downloadJob;
+	private final Handler handler;				// Used to dispatch events on the main thread
 
 	private OnLoaderLoadingStartListener onLoaderLoadingStartListener;
 	private OnLoaderLoadingErrorListener onLoaderLoadingErrorListener;
@@ -46,8 +73,18 @@ public class Loader {
 		isLoaded = false;
 		loadedBytes = 0;
 		totalBytes = 0;
+		decodedBytes = 0;
+
+		outputStream = null;
+		keepsData = true;
+
+		ifNoneMatch = null;
+		ifModifiedSince = null;
+		responseCode = -1;
 
-		downloadTask = null;
+		priority = DownloadScheduler.PRIORITY_VISIBLE;
+		downloadJob = null;
+		handler = new Handler(Looper.getMainLooper());
 
 		headers = new HashMap<String, String>();
 	}
@@ -71,21 +108,27 @@ public class Loader {
 		if (onLoaderLoadingCompleteListener != null) onLoaderLoadingCompleteListener.onLoaderLoadingComplete(this);
 	}
 
-	protected void setStart(int __totalBytes) {
+	protected void setStart(int __totalBytes, int __responseCode, String __eTag, String __lastModified, String __cacheControl) {
 		// Signal from background thread saying it has started
 		totalBytes = __totalBytes;
+		responseCode = __responseCode;
+		responseETag = __eTag;
+		responseLastModified = __lastModified;
+		responseCacheControl = __cacheControl;
 		dispatchOnLoaderLoadingStart();
 	}
 
-	protected void setError() {
+	protected void setError(int __responseCode) {
 		// Signal from background thread saying it had an error :(
-		downloadTask = null;
+		downloadJob = null;
+		responseCode = __responseCode;
 		dispatchOnLoaderLoadingError();
 	}
 
-	protected void setProgress(int __loadedBytes) {
+	protected void setProgress(int __loadedBytes, int __decodedBytes) {
 		// Signal from background thread saying it's progressing
 		loadedBytes = __loadedBytes;
+		decodedBytes = __decodedBytes;
 		dispatchOnLoaderLoadingProgress();
 	}
 
@@ -93,15 +136,19 @@ public class Loader {
 		// Signal from background thread saying it has finished
 		isLoaded = true;
 		isLoading = false;
-		loadedBytes = totalBytes;
-		downloadTask = null;
+		if (totalBytes > 0) loadedBytes = totalBytes;
+		downloadJob = null;
 
 		data = __data;
 		dispatchOnLoaderLoadingComplete();
 	}
 
+	protected static String getPartialId(String __url) {
+		return PARTIAL_ID_PREFIX + __url;
+	}
+
 	protected void clear() {
-		downloadTask = null;
+		downloadJob = null;
 		data = null;
 		isLoaded = false;
 	}
@@ -129,11 +176,13 @@ public class Loader {
 		isLoading = true;
 		loadedBytes = 0;
 		totalBytes = 0;
+		decodedBytes = 0;
+		responseCode = -1;
+		responseETag = null;
+		responseLastModified = null;
+		responseCacheControl = null;
 
-		if (fileURL != null) {
-			downloadTask = new DownloadFilesTask();
-			downloadTask.execute(fileURL);
-		}
+		if (fileURL != null) downloadJob = DownloadScheduler.getDownloadScheduler().submit(url, priority, new DownloadTask(fileURL));
 
 	}
 
@@ -141,10 +190,17 @@ public class Loader {
 		headers.put(__key, __value);
 	}
 
+	public void setValidators(String __eTag, String __lastModified) {
+		// Validators of a cached version of the content (e.g. from FileCache.getFileETag() and getFileLastModified());
+		// if the server answers that it hasn't changed, loading completes without data and getIsNotModified() is true
+		ifNoneMatch = __eTag;
+		ifModifiedSince = __lastModified;
+	}
+
 	public void cancel() {
-		if (downloadTask != null) {
-			downloadTask.cancel(true);
-			downloadTask = null;
+		if (downloadJob != null) {
+			downloadJob.cancel();
+			downloadJob = null;
 		}
 
 		isLoading = false;
@@ -172,17 +228,65 @@ public class Loader {
 	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
 
 	public byte[] getData() {
+		// Loaded content; always null if keepsData is false
 		return data;
 	}
 
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	public void setOutputStream(OutputStream __outputStream) {
+		// Stream that also receives the loaded bytes as they arrive, on the loading thread (e.g. a FileCacheEditor stream)
+		// The stream is not closed by the loader
+		outputStream = __outputStream;
+	}
+
+	public boolean getKeepsData() {
+		return keepsData;
+	}
+
+	public void setKeepsData(boolean __keepsData) {
+		// If false, the loaded content is not buffered in memory, and getData() returns null; use with setOutputStream()
+		keepsData = __keepsData;
+	}
+
+	public FileCache getResumeCache() {
+		return resumeCache;
+	}
+
+	public void setResumeCache(FileCache __resumeCache) {
+		// Cache where content is kept as it arrives; if loading fails halfway, the next load of the same URL only asks the
+		// server for the rest of it (with Range/If-Range), and starts over if the content changed or the server doesn't
+		// support ranges. Only content with an ETag or Last-Modified, sent without compression, can be resumed
+		resumeCache = __resumeCache;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int __priority) {
+		// One of the DownloadScheduler.PRIORITY_* constants; a load that is still queued is moved to the new priority
+		priority = __priority;
+		if (downloadJob != null) downloadJob.setPriority(__priority);
+	}
+
 	public int getTotalBytes() {
+		// Size of the response as sent by the server (Content-Length), or -1 if not known
 		return totalBytes;
 	}
 
 	public int getLoadedBytes() {
+		// Bytes of the response received so far, comparable to getTotalBytes()
 		return loadedBytes;
 	}
 
+	public int getDecodedBytes() {
+		// Bytes of content received so far; larger than getLoadedBytes() if the server compressed the response
+		return decodedBytes;
+	}
+
 	public boolean getIsLoading() {
 		return isLoading;
 	}
@@ -191,6 +295,27 @@ public class Loader {
 		return isLoaded;
 	}
 
+	public int getResponseCode() {
+		// HTTP status of the response, or -1 if not known (e.g. local files, or no response); also set after errors
+		return responseCode;
+	}
+
+	public boolean getIsNotModified() {
+		return responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+	}
+
+	public String getResponseETag() {
+		return responseETag;
+	}
+
+	public String getResponseLastModified() {
+		return responseLastModified;
+	}
+
+	public String getResponseCacheControl() {
+		return responseCacheControl;
+	}
+
 	// ================================================================================================================
 	// INTERFACE CLASSES ----------------------------------------------------------------------------------------------
 
@@ -213,25 +338,59 @@ public class Loader {
 	// ================================================================================================================
 	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
 
-	private class DownloadFilesTask extends AsyncTask<URL, Integer, byte[]> {
-
-		protected boolean calledOnStart = false;	// Whether it was already called once or not
+	private class DownloadTask implements Runnable {
+
+		// Runs on a DownloadScheduler thread; events are posted back to the main thread, and dropped if the load was
+		// cancelled (or restarted) in the meantime
+
+		private final URL fileURL;
+		private DownloadScheduler.Job job;
+		private final ProgressThrottle progressThrottle;
+		private int responseCode = -1;
+		private String eTag;
+		private String lastModified;
+		private String cacheControl;
+		private final FileCache partialCache;			// Resume cache when the load started
+		private final String partialId;
+		private FileCacheEditor partialEditor;			// Keeps the content in the resume cache as it arrives
+		private OutputStream partialStream;
+
+		public DownloadTask(URL __fileURL) {
+			fileURL = __fileURL;
+			partialCache = resumeCache;
+			partialId = resumeCache == null ? null : getPartialId(url);
+			progressThrottle = new ProgressThrottle(handler) {
+				@Override
+				protected void onProgress(int __loadedBytes, int __decodedBytes) {
+					if (job == downloadJob) Loader.this.setProgress(__loadedBytes, __decodedBytes);
+				}
+			};
+		}
 
 		@Override
-		protected byte[] doInBackground(URL... urls) {
+		public void run() {
 			// Invoked on background thread
+			job = DownloadScheduler.getCurrentJob();
 
-			//Log.v("Loader", " ===> Running! " + urls[0]);
-
-			// Only the first URL is used!
-			URL fileURL = urls[0];
-
-			InputStream inputStream = null;
+			DecodingInputStream inputStream = null;
+			ConnectionManager connectionManager = ConnectionManager.getConnectionManager();
+			URLConnection connection = null;
 
 			int totalBytes;
 
+			// A previous attempt that failed halfway may have left part of the content in the resume cache
+			int partialBytes = 0;
+			String partialValidator = null;
+			if (partialCache != null) {
+				// Only checked in the index, so it's not counted as a cache miss when there's nothing to resume
+				long partialSize = partialCache.getFileSize(partialId);
+				partialValidator = partialCache.getFileETag(partialId);
+				if (partialValidator == null) partialValidator = partialCache.getFileLastModified(partialId);
+				if (partialSize > 0 && partialValidator != null) partialBytes = (int)partialSize;
+			}
+
 			try {
-				URLConnection connection = fileURL.openConnection();
+				connection = connectionManager.openConnection(fileURL);
 				connection.setDoInput(true); // Probably not necessary?
 
 				// Set headers
@@ -242,10 +401,47 @@ public class Loader {
 					//it.remove();
 				}
 
-				connection.setConnectTimeout(3000);
+				if (ifNoneMatch != null) connection.setRequestProperty("If-None-Match", ifNoneMatch);
+				if (ifModifiedSince != null) connection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+
 				connection.setRequestProperty("Accept","*/*");
+				if (partialBytes > 0 && connection instanceof HttpURLConnection) {
+					// Only asks for the rest of the content; if it changed since, the server sends all of it instead.
+					// Ranges of compressed content can't be decoded on their own, so it's asked for as is
+					connection.setRequestProperty("Range", "bytes=" + partialBytes + "-");
+					connection.setRequestProperty("If-Range", partialValidator);
+					connection.setRequestProperty("Accept-Encoding", "identity");
+				} else if (connection instanceof HttpURLConnection && !headers.containsKey("Accept-Encoding")) {
+					connection.setRequestProperty("Accept-Encoding", DecodingInputStream.ACCEPT_ENCODING);
+				}
 				connection.connect();
-				inputStream = connection.getInputStream();
+
+				if (connection instanceof HttpURLConnection) {
+					responseCode = ((HttpURLConnection)connection).getResponseCode();
+					eTag = connection.getHeaderField("ETag");
+					lastModified = connection.getHeaderField("Last-Modified");
+					cacheControl = connection.getHeaderField("Cache-Control");
+				}
+
+				if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					// Nothing to read; the cached version is still current
+					connectionManager.releaseConnection(connection, connection.getInputStream());
+					if (partialBytes > 0) partialCache.deleteFile(partialId);
+					postStart(0);
+					postComplete(null);
+					return;
+				}
+
+				if (partialBytes > 0 && (responseCode != HttpURLConnection.HTTP_PARTIAL || getContentRangeStart(connection) != partialBytes)) {
+					// The server sent the whole content (or a range that doesn't match), so what was kept is useless
+					F.debug("Could not resume download of [" + fileURL + "]; downloading all of it");
+					partialCache.deleteFile(partialId);
+					partialBytes = 0;
+
+					if (responseCode == HttpURLConnection.HTTP_PARTIAL) throw new IOException("Unexpected range " + connection.getHeaderField("Content-Range"));
+				}
+
+				inputStream = new DecodingInputStream(connection.getInputStream(), connection.getContentEncoding());
 
 				// Same:
 				//InputStream is = (InputStream)fileURL.getContent();
@@ -253,66 +449,167 @@ public class Loader {
 				//Log.d("Loader", "File last modified is " + new Date(connection.getLastModified())); // Correct last modified date
 
 				totalBytes = connection.getContentLength();
+				if (partialBytes > 0 && totalBytes >= 0) totalBytes += partialBytes;
 			} catch (IOException __e) {
-				F.error(" ===> IOException while trying to open remote file [" + urls[0] + "]! " + __e);
-				return null;
+				F.error(" ===> IOException while trying to open remote file [" + fileURL + "]! " + __e);
+
+				// Error responses are read anyway, so the connection can be reused
+				if (connection != null) connectionManager.releaseConnection(connection, null);
+				postError();
+				return;
 			}
 
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			if (partialBytes > 0) F.debug("Resuming download of [" + fileURL + "] from byte " + partialBytes);
+
+			OutputStream teeStream = outputStream;
+			ByteArrayOutputStream buffer = keepsData ? new ByteArrayOutputStream(totalBytes > 0 ? totalBytes : 32) : null;
 			byte[] fdata = new byte[16384];
 			int nRead;
-			int loadedBytes = 0;
 
-			publishProgress(totalBytes);
+			// The content is also kept in the resume cache as it arrives, so it can be resumed if this attempt fails
+			if (getIsResumable(connection)) {
+				partialEditor = partialCache.edit(partialId);
+				partialStream = partialEditor.getOutputStream();
+				if (partialStream == null) {
+					partialEditor.abort();
+					partialEditor = null;
+				}
+			}
+
+			postStart(totalBytes);
+			progressThrottle.setTotalBytes(totalBytes);
 
 			try {
-				while ((nRead = inputStream.read(fdata, 0, fdata.length)) != -1) {
-					loadedBytes += nRead;
-					publishProgress(loadedBytes);
-					buffer.write(fdata, 0, nRead);
+				if (partialBytes > 0) {
+					// What was downloaded before comes first
+					InputStream partialInput = partialCache.getFile(partialId);
+					if (partialInput == null) throw new IOException("Partial content was removed from the cache");
+					try {
+						while ((nRead = partialInput.read(fdata, 0, fdata.length)) != -1) write(fdata, nRead, buffer, teeStream);
+					} finally {
+						partialInput.close();
+					}
 				}
-				buffer.flush();
+
+				while (!job.getIsCancelled() && (nRead = inputStream.read(fdata, 0, fdata.length)) != -1) {
+					progressThrottle.setProgress(partialBytes + inputStream.getWireBytes(), partialBytes + inputStream.getDecodedBytes());
+					write(fdata, nRead, buffer, teeStream);
+				}
+				if (teeStream != null) teeStream.flush();
+
+				// Some connections just end when they're dropped, so content that's shorter than announced is an error too
+				if (!job.getIsCancelled() && totalBytes > 0 && partialBytes + inputStream.getWireBytes() < totalBytes) {
+					throw new IOException("Connection closed after " + (partialBytes + inputStream.getWireBytes()) + " of " + totalBytes + " bytes");
+				}
+
+				// Whatever is left (if cancelled) is skipped, so the connection can be reused
+				connectionManager.releaseConnection(connection, inputStream);
 			} catch (IOException __e) {
 				F.error(" ===> IOException while trying to read remote file! " + __e);
-				return null;
+				if (connection instanceof HttpURLConnection) ((HttpURLConnection)connection).disconnect();
+				keepPartialContent();
+				postError();
+				return;
 			}
 
-			publishProgress(totalBytes);
+			if (job.getIsCancelled()) {
+				keepPartialContent();
+				return;
+			}
+
+			if (partialEditor != null) {
+				partialEditor.abort();
+				partialEditor = null;
+				partialCache.deleteFile(partialId);
+			}
+
+			progressThrottle.flush();
 
 			fdata = null;
 
-			return buffer.toByteArray();
+			postComplete(buffer == null ? null : buffer.toByteArray());
 		}
 
-		@Override
-		protected void onProgressUpdate(Integer... __loadedBytes) {
-			// Invoked on UI thread
-			if (!calledOnStart) {
-				// First call
-				calledOnStart = true;
-				// This is actually total bytes
-				setStart(__loadedBytes[0]);
-			} else {
-				// Normal progress
-				setProgress(__loadedBytes[0]);
+		private boolean getIsResumable(URLConnection __connection) {
+			// Content can only be resumed later if the server can tell whether it changed, and sends it as is
+			if (partialCache == null || !(__connection instanceof HttpURLConnection)) return false;
+			if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) return false;
+			if (eTag == null && lastModified == null) return false;
+
+			String contentEncoding = __connection.getContentEncoding();
+			if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) return false;
+
+			String acceptRanges = __connection.getHeaderField("Accept-Ranges");
+			return acceptRanges == null || !acceptRanges.equalsIgnoreCase("none");
+		}
+
+		private int getContentRangeStart(URLConnection __connection) {
+			// First byte of a "Content-Range: bytes 100-999/1000" header, or -1 if not valid
+			String contentRange = __connection.getHeaderField("Content-Range");
+			if (contentRange == null) return -1;
+
+			Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+			if (!matcher.matches()) return -1;
+			try {
+				return Integer.parseInt(matcher.group(1));
+			} catch (NumberFormatException __e) {
+				return -1;
 			}
 		}
 
-		@Override
-		protected void onPostExecute(byte[] __output) {
-			// Invoked on UI thread
-			if (__output == null) {
-				setError();
-			} else {
-				setComplete(__output);
+		private void write(byte[] __data, int __length, ByteArrayOutputStream __buffer, OutputStream __teeStream) throws IOException {
+			if (__buffer != null) __buffer.write(__data, 0, __length);
+			if (__teeStream != null) __teeStream.write(__data, 0, __length);
+
+			if (partialStream != null) {
+				try {
+					partialStream.write(__data, 0, __length);
+				} catch (IOException __e) {
+					F.warn("Could not keep partial content of [" + fileURL + "]! " + __e);
+					partialEditor.abort();
+					partialEditor = null;
+					partialStream = null;
+				}
 			}
-			//Log.v("Loader", " ===> Completed!");
 		}
 
-		@Override
-		protected void onCancelled() {
-			// Invoked on UI thread
-			//Log.v("Loader", " ===> Cancelled!");
+		private void keepPartialContent() {
+			// Saves what was downloaded so far, so the next attempt can resume from it
+			if (partialEditor == null) return;
+
+			if (partialEditor.commit()) {
+				partialCache.setFileValidators(partialId, eTag, lastModified, null);
+				partialCache.setFileExpirationTimeRelativeToNow(partialId, PARTIAL_CONTENT_MAX_AGE);
+			}
+			partialEditor = null;
+			partialStream = null;
+		}
+
+		private void postStart(final int __totalBytes) {
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (job == downloadJob) setStart(__totalBytes, responseCode, eTag, lastModified, cacheControl);
+				}
+			});
+		}
+
+		private void postError() {
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (job == downloadJob) setError(responseCode);
+				}
+			});
+		}
+
+		private void postComplete(final byte[] __data) {
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (job == downloadJob) setComplete(__data);
+				}
+			});
 		}
 	}
 }
@@ -0,0 +1,178 @@
+package com.zehfernando.net.loaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+
+import com.zehfernando.net.loaders.TextLoader.RequestContentStreamWriter;
+
+public class MultipartContent implements RequestContentStreamWriter {
+
+	/*
+	Encodes form fields and files as multipart/form-data (RFC 2388), streaming file contents to the connection as
+	they're written instead of keeping them in memory.
+
+	Usage:
+
+		MultipartContent content = new MultipartContent(boundary);
+		content.addField("name", "Photo");
+		content.addFile("file", "photo.jpg", null, new FileInputStream(file), -1);
+
+		textLoader.setContentType(content.getContentType());
+		textLoader.setRequestContentStreamWriter(content);
+
+	When the length of every file is known (given, or read from FileInputStreams and ByteArrayInputStreams), so is
+	getContentLength(), and the connection can send the content as it's written; otherwise it's sent in chunks.
+	Files are read through one fixed buffer, and their streams are closed once written.
+	*/
+
+	// Constants
+	public static final String DEFAULT_FILE_CONTENT_TYPE = "application/octet-stream";
+
+	protected static final String CHARSET = "UTF-8";					// Of field names, values and file names
+	protected static final String LINE_END = "\r\n";
+	protected static final String TWO_HYPHENS = "--";
+	protected static final int BUFFER_SIZE = 8192;
+
+	// Properties
+	private final String boundary;
+	private final ArrayList<Part> parts;
+	private byte[] buffer;											// Used to copy all files, created when first needed
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public MultipartContent(String __boundary) {
+		boundary = __boundary;
+		parts = new ArrayList<Part>();
+		buffer = null;
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	protected byte[] getBytes(String __text) {
+		try {
+			return __text.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException __e) {
+			// Never happens; UTF-8 is always supported
+			return __text.getBytes();
+		}
+	}
+
+	protected static String getQuoted(String __text) {
+		// Value of a Content-Disposition parameter; quotes and line breaks would end it early
+		return "\"" + __text.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A") + "\"";
+	}
+
+	protected static long getStreamLength(InputStream __input) {
+		// Bytes left in __input, if that can be known without reading it; -1 otherwise
+		try {
+			if (__input instanceof FileInputStream) {
+				FileInputStream fileInput = (FileInputStream)__input;
+				return fileInput.getChannel().size() - fileInput.getChannel().position();
+			}
+			if (__input instanceof ByteArrayInputStream) return __input.available();
+		} catch (IOException __e) {
+		}
+		return -1;
+	}
+
+	protected byte[] getBoundaryEnd() {
+		return getBytes(TWO_HYPHENS + boundary + TWO_HYPHENS + LINE_END);
+	}
+
+	protected void copy(InputStream __input, OutputStream __output) throws IOException {
+		if (buffer == null) buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = __input.read(buffer, 0, buffer.length)) != -1) {
+			__output.write(buffer, 0, read);
+		}
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public void addField(String __name, String __value) {
+		String header = TWO_HYPHENS + boundary + LINE_END;
+		header += "Content-Disposition: form-data; name=" + getQuoted(__name) + LINE_END;
+		header += LINE_END;
+		parts.add(new Part(getBytes(header), getBytes(__value == null ? "" : __value), null, 0));
+	}
+
+	public void addFile(String __name, String __fileName, String __contentType, InputStream __input, long __length) {
+		// Adds the content of __input as a file; __contentType is guessed from __fileName if null, and __length is read
+		// from the stream if it's -1 (if possible)
+		String contentType = __contentType;
+		if (contentType == null && __fileName != null) contentType = URLConnection.guessContentTypeFromName(__fileName);
+		if (contentType == null) contentType = DEFAULT_FILE_CONTENT_TYPE;
+
+		String header = TWO_HYPHENS + boundary + LINE_END;
+		header += "Content-Disposition: form-data; name=" + getQuoted(__name) + "; filename=" + getQuoted(__fileName == null ? "" : __fileName) + LINE_END;
+		header += "Content-Type: " + contentType + LINE_END;
+		header += LINE_END;
+		parts.add(new Part(getBytes(header), null, __input, __length < 0 ? getStreamLength(__input) : __length));
+	}
+
+	public String getContentType() {
+		// Value of the Content-Type header of the request
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	@Override
+	public long getContentLength() {
+		// Size of the whole content, in bytes, or -1 if the length of a file is not known
+		long length = getBoundaryEnd().length;
+		for (Part part:parts) {
+			if (part.length < 0) return -1;
+			length += part.header.length + part.length + LINE_END.length();
+		}
+		return length;
+	}
+
+	@Override
+	public void writeToStream(OutputStream __stream) throws IOException {
+		// Writes the content; __stream is not closed
+		byte[] lineEnd = getBytes(LINE_END);
+
+		for (Part part:parts) {
+			__stream.write(part.header);
+			if (part.content != null) {
+				__stream.write(part.content);
+			} else {
+				try {
+					copy(part.input, __stream);
+				} finally {
+					part.input.close();
+				}
+			}
+			__stream.write(lineEnd);
+		}
+
+		__stream.write(getBoundaryEnd());
+		__stream.flush();
+	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class Part {
+
+		public final byte[] header;			// Boundary and part headers
+		public final byte[] content;		// Content of fields
+		public final InputStream input;		// Content of files
+		public final long length;			// Length of the content, or -1 if not known
+
+		public Part(byte[] __header, byte[] __content, InputStream __input, long __length) {
+			header = __header;
+			content = __content;
+			input = __input;
+			length = __content != null ? __content.length : __length;
+		}
+	}
+}
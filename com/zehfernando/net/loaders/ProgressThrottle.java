@@ -0,0 +1,115 @@
+package com.zehfernando.net.loaders;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+public abstract class ProgressThrottle {
+
+	/*
+	Coalesces the progress of a download before it's reported on the main thread. The loading thread can report
+	progress after every read; it's only posted to the main thread a few times per second, and only when it moved by
+	a visible step, and reports that arrive while one is waiting to be dispatched just update it.
+
+	Nothing is allocated per report: the same Runnable is posted every time, and it dispatches the latest values when
+	it runs.
+
+	Usage:
+
+		ProgressThrottle throttle = new ProgressThrottle(handler) {
+			@Override
+			protected void onProgress(int __loadedBytes, int __decodedBytes) {
+				// Main thread
+			}
+		};
+
+		// Loading thread
+		throttle.setTotalBytes(totalBytes);
+		throttle.setProgress(loadedBytes, decodedBytes);
+		(...)
+		throttle.flush(); // Before reporting completion, so the final value is always dispatched
+	*/
+
+	// Constants
+	public static final int DEFAULT_MAX_UPDATES_PER_SECOND = 10;
+	public static final float DEFAULT_MIN_STEP = 0.01f;					// Minimum change (as a fraction of the total) worth reporting
+
+	// Properties
+	private final Handler handler;
+	private final Runnable dispatcher;
+	private final AtomicBoolean isDispatchPending;
+	private final long minInterval;										// In ms
+	private final float minStep;
+
+	private volatile int loadedBytes;									// Latest values, written by the loading thread
+	private volatile int decodedBytes;
+	private int totalBytes;
+	private long lastPostTime;											// Only used by the loading thread
+	private int lastPostLoadedBytes;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public ProgressThrottle(Handler __handler) {
+		this(__handler, DEFAULT_MAX_UPDATES_PER_SECOND, DEFAULT_MIN_STEP);
+	}
+
+	public ProgressThrottle(Handler __handler, int __maxUpdatesPerSecond, float __minStep) {
+		handler = __handler;
+		minInterval = 1000 / Math.max(1, __maxUpdatesPerSecond);
+		minStep = __minStep;
+
+		isDispatchPending = new AtomicBoolean(false);
+		dispatcher = new Runnable() {
+			@Override
+			public void run() {
+				// Cleared before reading, so values set after this are posted again
+				isDispatchPending.set(false);
+				onProgress(loadedBytes, decodedBytes);
+			}
+		};
+
+		totalBytes = -1;
+		lastPostTime = 0;
+		lastPostLoadedBytes = 0;
+	}
+
+	// ================================================================================================================
+	// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+	private void post() {
+		lastPostTime = SystemClock.uptimeMillis();
+		lastPostLoadedBytes = loadedBytes;
+		if (isDispatchPending.compareAndSet(false, true)) handler.post(dispatcher);
+	}
+
+	// ================================================================================================================
+	// EXTENDABLE INTERFACE -------------------------------------------------------------------------------------------
+
+	protected abstract void onProgress(int __loadedBytes, int __decodedBytes);
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public void setTotalBytes(int __totalBytes) {
+		// Expected total, used for the minimum step; -1 if not known
+		totalBytes = __totalBytes;
+	}
+
+	public void setProgress(int __loadedBytes, int __decodedBytes) {
+		// Called from the loading thread as often as needed
+		loadedBytes = __loadedBytes;
+		decodedBytes = __decodedBytes;
+
+		if (SystemClock.uptimeMillis() - lastPostTime < minInterval) return;
+		if (totalBytes > 0 && __loadedBytes < totalBytes && __loadedBytes - lastPostLoadedBytes < totalBytes * minStep) return;
+
+		post();
+	}
+
+	public void flush() {
+		// Dispatches the latest values, if they haven't been dispatched yet
+		if (loadedBytes != lastPostLoadedBytes || lastPostTime == 0) post();
+	}
+}
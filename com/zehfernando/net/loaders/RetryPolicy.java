@@ -0,0 +1,165 @@
+package com.zehfernando.net.loaders;
+
+import java.util.Locale;
+import java.util.Random;
+
+public class RetryPolicy {
+
+	/*
+	Decides whether a failed request should be tried again, and how long to wait before that.
+
+	Delays grow exponentially with each attempt, with "full jitter": the actual delay is a random time between zero and
+	the exponential value. When a server has a problem, every client that was using it fails at about the same time;
+	without the random part, they would all come back at the same time too, over and over.
+
+	Requests that aren't idempotent (POSTs that add or change something) are not retried by default, since the server
+	may have acted on a request even if its response never arrived.
+
+	Usage:
+
+		RetryPolicy policy = RetryPolicy.getDefaultPolicy();
+		(...)
+		// After an attempt failed; attempts made so far, the HTTP status received (-1 if none)
+		if (policy.getShouldRetry(attempts, status, RetryPolicy.getIsIdempotent(method))) {
+			retry = new DoLater(policy.getDelay(attempts), new DoLaterListener() {
+				@Override
+				public void doThis() {
+					// Try again
+				}
+			});
+		}
+
+	Waiting is left to the caller (e.g. with a DoLater), so no thread is blocked while it waits.
+	*/
+
+	// Constants
+	public static final int RETRY_ON_CONNECTION_ERROR = 1;				// No response, or a response that stopped halfway
+	public static final int RETRY_ON_SERVER_ERROR = 2;					// 5xx, except the ones that won't change (501, 505)
+	public static final int RETRY_ON_THROTTLING = 4;					// 408 (Request Timeout) and 429 (Too Many Requests)
+	public static final int RETRY_ON_CLIENT_ERROR = 8;					// Any other 4xx
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;					// Including the first one
+	public static final long DEFAULT_BASE_DELAY = 500;					// Maximum delay before the first retry, in ms
+	public static final long DEFAULT_MAX_DELAY = 30000;					// In ms
+	public static final int DEFAULT_RETRY_ON = RETRY_ON_CONNECTION_ERROR | RETRY_ON_SERVER_ERROR | RETRY_ON_THROTTLING;
+
+	protected static final int HTTP_TOO_MANY_REQUESTS = 429;			// Not in HttpURLConnection
+
+	// Static properties
+	private static RetryPolicy defaultPolicy;
+	private static final Random random = new Random();
+
+	// Properties
+	private int maxAttempts;
+	private long baseDelay;
+	private long maxDelay;
+	private int retryOn;
+	private boolean retriesNonIdempotent;
+
+	// ================================================================================================================
+	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_RETRY_ON);
+	}
+
+	public RetryPolicy(int __maxAttempts, long __baseDelay, long __maxDelay, int __retryOn) {
+		setMaxAttempts(__maxAttempts);
+		setBaseDelay(__baseDelay);
+		setMaxDelay(__maxDelay);
+		setRetryOn(__retryOn);
+		retriesNonIdempotent = false;
+	}
+
+	// ================================================================================================================
+	// STATIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public static synchronized RetryPolicy getDefaultPolicy() {
+		// Shared instance, used by BasicServiceRequest and ImageLoader unless they're given another one
+		if (defaultPolicy == null) defaultPolicy = new RetryPolicy();
+		return defaultPolicy;
+	}
+
+	public static boolean getIsIdempotent(String __method) {
+		// Whether sending a request with this method more than once has the same effect as sending it once (RFC 2616)
+		if (__method == null) return true;
+		String method = __method.toUpperCase(Locale.US);
+		return method.equals("GET") || method.equals("HEAD") || method.equals("PUT") || method.equals("DELETE") || method.equals("OPTIONS") || method.equals("TRACE");
+	}
+
+	public static int getFailureType(int __status) {
+		// Which of the RETRY_ON_* types a failure with this HTTP status is
+		if (__status < 400) return RETRY_ON_CONNECTION_ERROR;
+		if (__status == 408 || __status == HTTP_TOO_MANY_REQUESTS) return RETRY_ON_THROTTLING;
+		if (__status < 500) return RETRY_ON_CLIENT_ERROR;
+		if (__status == 501 || __status == 505) return 0;
+		return RETRY_ON_SERVER_ERROR;
+	}
+
+	// ================================================================================================================
+	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+	public synchronized boolean getShouldRetry(int __attempts, int __status, boolean __isIdempotent) {
+		// Whether to try again after __attempts failed attempts; __status is the HTTP status of the last one, or -1 if
+		// there was no response
+		if (__attempts >= maxAttempts) return false;
+		if (!__isIdempotent && !retriesNonIdempotent) return false;
+		return (retryOn & getFailureType(__status)) != 0;
+	}
+
+	public synchronized long getDelay(int __attempts) {
+		// Time to wait before the next attempt, after __attempts failed attempts, in ms
+		long delay = baseDelay;
+		for (int i = 1; i < __attempts && delay < maxDelay; i++) delay *= 2;
+		delay = Math.min(delay, maxDelay);
+		return (long)(random.nextDouble() * (delay + 1));
+	}
+
+	// ================================================================================================================
+	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
+
+	public synchronized int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public synchronized void setMaxAttempts(int __maxAttempts) {
+		// Maximum number of attempts, including the first one (1 never retries)
+		maxAttempts = Math.max(1, __maxAttempts);
+	}
+
+	public synchronized long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public synchronized void setBaseDelay(long __baseDelay) {
+		// Maximum delay before the first retry, doubled for each retry after it, in ms
+		baseDelay = Math.max(1, __baseDelay);
+	}
+
+	public synchronized long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public synchronized void setMaxDelay(long __maxDelay) {
+		// Maximum delay before any retry, in ms
+		maxDelay = Math.max(0, __maxDelay);
+	}
+
+	public synchronized int getRetryOn() {
+		return retryOn;
+	}
+
+	public synchronized void setRetryOn(int __retryOn) {
+		// Combination of the RETRY_ON_* types of failure that are retried
+		retryOn = __retryOn;
+	}
+
+	public synchronized boolean getRetriesNonIdempotent() {
+		return retriesNonIdempotent;
+	}
+
+	public synchronized void setRetriesNonIdempotent(boolean __retriesNonIdempotent) {
+		// Whether requests that aren't idempotent are retried too (only safe if the server ignores duplicates)
+		retriesNonIdempotent = __retriesNonIdempotent;
+	}
+}
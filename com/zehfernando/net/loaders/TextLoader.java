@@ -1,23 +1,30 @@
 package com.zehfernando.net.loaders;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 
 import android.os.Handler;
 import android.os.Message;
 
+import com.zehfernando.net.cache.FileCache;
+import com.zehfernando.net.cache.FileCacheEditor;
 import com.zehfernando.utils.F;
 
 public class TextLoader {
@@ -25,24 +32,28 @@ public class TextLoader {
 	/* Asynchronous loader for text files (like XMLs) */
 
 	// Constants
+	// Messages carry the LoadingTask that sent them, and are ignored if it's not the current one
 	protected static final int MESSAGE_TYPE_START = 0;				// Param is: total bytes
-	protected static final int MESSAGE_TYPE_PROGRESS = 1;			// Param is: loaded bytes
 	protected static final int MESSAGE_TYPE_COMPLETE = 2;			// No param
 	protected static final int MESSAGE_TYPE_ERROR = 3;				// No param
 	protected static final int MESSAGE_TYPE_CANCELED = 4;			// No param
 
-	protected static final int MESSAGE_TYPE_HEADER = 5;
+	protected static final int MESSAGE_TYPE_HEADER = 5;				// Param is: header type; the value is read from the task
 	protected static final int MESSAGE_TYPE_HEADER_LAST_MODIFIED = 0;
+	protected static final int MESSAGE_TYPE_HEADER_RESPONSE_CODE = 1;
 
 	public static final String METHOD_POST = "POST";
 	public static final String METHOD_GET = "GET";
 
+	protected static final String DEFAULT_CHARSET = "UTF-8";		// Used when the response doesn't declare one
+
 	// Properties
 	private String url;
-	private String data;
+	private String data;								// Response decoded as text, only created when getData() is first called
 
 	private boolean needsDataFromOutputStream;
-	private ByteArrayOutputStream dataStream;
+	private ResponseBuffer dataStream;					// Response as received (after decoding the transfer encoding)
+	private String charset;								// Charset declared in the response's Content-Type, or null
 
 	private String method;
 	private String requestContent;
@@ -50,12 +61,22 @@ public class TextLoader {
 
 	private boolean isLoading;
 	private boolean isLoaded;
-	private int loadedBytes;
+	private int loadedBytes;							// Bytes received, as sent by the server (possibly compressed)
 	private int totalBytes;
+	private int decodedBytes;							// Bytes of content, after decoding the transfer encoding
+	private int uploadedBytes;							// Bytes of the request content sent so far
+	private int uploadTotalBytes;						// Size of the request content, or -1 if not known
 
 	private long headerLastModified;
+	private int responseCode;							// HTTP status of the response, or -1 if not known
+
+	private FileCache fileCache;						// If set, GET responses are cached here and revalidated with conditional requests
+	private long cacheMaxAge;							// Time cached responses without a Cache-Control max-age are used without revalidating, in ms
+	private boolean isFromCache;
 
-	private LoadingThread loadingThread;
+	private int priority;								// Priority in the DownloadScheduler
+	private DownloadScheduler.Job loadingJob;
+	private LoadingTask loadingTask;					// Task of the current load; results of other tasks are ignored
 	private final Handler loadingHandler;
 
 	private OnTextLoaderStartListener onStartListener;
@@ -63,8 +84,10 @@ public class TextLoader {
 	private OnTextLoaderProgressListener onProgressListener;
 	private OnTextLoaderCompleteListener onCompleteListener;
 	private OnTextLoaderCancelListener onCancelListener;
+	private OnTextLoaderUploadProgressListener onUploadProgressListener;
 
 	private RequestContentStreamWriter requestContentStreamWriter;
+	private ResponseStreamReader responseStreamReader;	// If set, the response is passed to it as it arrives instead of being kept
 
 	private final HashMap<String, String> headers;
 
@@ -76,45 +99,78 @@ public class TextLoader {
 		isLoaded = false;
 		loadedBytes = 0;
 		totalBytes = 0;
+		decodedBytes = 0;
+		uploadedBytes = 0;
+		uploadTotalBytes = 0;
 
 		method = METHOD_GET;
 		requestContent = "";
 		contentType = "";
 
-		needsDataFromOutputStream = true;
+		needsDataFromOutputStream = false;
 		dataStream = null;
+		charset = null;
 
 		headers = new HashMap<String, String>();
 
 		headerLastModified = 0;
+		responseCode = -1;
+
+		fileCache = null;
+		cacheMaxAge = 0;
+		isFromCache = false;
+
+		priority = DownloadScheduler.PRIORITY_VISIBLE;
+		loadingJob = null;
+		loadingTask = null;
 
 		// Starts loading the actual file
 		loadingHandler = new Handler() {
 			@Override
 			public void handleMessage(Message msg) {
+				// Messages from a load that was replaced by another one are late, and don't apply anymore
+				LoadingTask task = (LoadingTask)msg.obj;
+				if (task == null || task != loadingTask) return;
+
+				int type = msg.arg1;
+				if (task.getIsCancelled()) {
+					// Once cancelled, a load can only end as cancelled, even if it had already finished
+					if (type != MESSAGE_TYPE_COMPLETE && type != MESSAGE_TYPE_ERROR && type != MESSAGE_TYPE_CANCELED) return;
+					type = MESSAGE_TYPE_CANCELED;
+				}
 
-				switch(msg.arg1) {
+				switch(type) {
 					case MESSAGE_TYPE_START:
 						totalBytes = msg.arg2;
 						dispatchOnLoadingStart();
 						break;
-					case MESSAGE_TYPE_PROGRESS:
-						loadedBytes = msg.arg2;
-						dispatchOnLoadingProgress();
-						break;
 					case MESSAGE_TYPE_ERROR:
+						isLoading = false;
+						loadingTask = null;
 						dispatchOnLoadingError();
 						break;
 					case MESSAGE_TYPE_COMPLETE:
+						charset = task.charset;
+						dataStream = task.dataStream;
+						needsDataFromOutputStream = task.dataStream != null;
+						isFromCache = task.isFromCache;
+						isLoading = false;
+						isLoaded = true;
+						loadingTask = null;
 						dispatchOnLoadingComplete();
 						break;
 					case MESSAGE_TYPE_CANCELED:
+						isLoading = false;
+						loadingTask = null;
 						dispatchOnCancel();
 						break;
 					case MESSAGE_TYPE_HEADER:
 						switch(msg.arg2) {
 							case MESSAGE_TYPE_HEADER_LAST_MODIFIED:
-								headerLastModified = (Long)msg.obj;
+								headerLastModified = task.headerLastModified;
+								break;
+							case MESSAGE_TYPE_HEADER_RESPONSE_CODE:
+								responseCode = task.responseCode;
 								break;
 						}
 						break;
@@ -141,6 +197,11 @@ public class TextLoader {
 		if (onProgressListener != null) onProgressListener.onProgress(this, loadedBytes, totalBytes);
 	}
 
+	protected void dispatchOnUploadProgress() {
+		// Request content is being sent, uploadedBytes has been updated
+		if (onUploadProgressListener != null) onUploadProgressListener.onUploadProgress(this, uploadedBytes, uploadTotalBytes);
+	}
+
 	protected void dispatchOnLoadingComplete() {
 		// Loading is complete
 		if (onCompleteListener != null) onCompleteListener.onComplete(this);
@@ -157,35 +218,81 @@ public class TextLoader {
 		needsDataFromOutputStream = false;
 		data = null;
 		dataStream = null;
+		charset = null;
 		isLoaded = false;
 	}
 
+	protected static String getCharset(String __contentType) {
+		// Charset parameter of a Content-Type (e.g. "text/xml; charset=ISO-8859-1"), or null if there's none
+		if (__contentType == null) return null;
+		String[] parameters = __contentType.split(";");
+		for (int i = 1; i < parameters.length; i++) {
+			String parameter = parameters[i].trim();
+			if (parameter.toLowerCase(Locale.US).startsWith("charset=")) {
+				String value = parameter.substring(8).trim();
+				if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
+				return value.length() > 0 ? value : null;
+			}
+		}
+		return null;
+	}
+
+	protected static String decode(byte[] __bytes, int __length, String __charset) {
+		// Decodes content with a response's charset, or UTF-8 if it's not declared or not supported
+		if (__charset != null) {
+			try {
+				return new String(__bytes, 0, __length, __charset);
+			} catch (UnsupportedEncodingException e) {
+				F.warn("Unsupported charset [" + __charset + "]; decoding as " + DEFAULT_CHARSET);
+			}
+		}
+		try {
+			return new String(__bytes, 0, __length, DEFAULT_CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			F.error("Invalid charset used! Duh!");
+			return "";
+		}
+	}
+
 	// ================================================================================================================
 	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
 
 	public void load(String __url) {
 		cancel();
 
-		loadingThread = new LoadingThread(loadingHandler);
-
 		url = __url;
 
 		isLoaded = false;
 		isLoading = true;
+		isFromCache = false;
+		responseCode = -1;
+		data = null;
+		dataStream = null;
+		needsDataFromOutputStream = false;
+		charset = null;
+		loadedBytes = 0;
+		totalBytes = 0;
+		decodedBytes = 0;
+		uploadedBytes = 0;
+		uploadTotalBytes = 0;
 
-		loadingThread.start();
+		// The task gets its own copy of the request, so changes made while it's loading only apply to the next load
+		loadingTask = new LoadingTask(loadingHandler);
+		loadingJob = DownloadScheduler.getDownloadScheduler().submit(url, priority, loadingTask);
 	}
 
 	public void cancel() {
-		if (loadingThread != null) {
-			Thread moribund = loadingThread;
-			loadingThread = null;
-			moribund.interrupt();
-			moribund = null;
+		if (loadingJob != null) {
+			// A load that was still queued never runs, so it's reported as canceled right away; a running one reports it
+			// when it stops. Either is ignored if another load starts before it arrives
+			if (loadingTask != null) loadingTask.isCancelled = true;
+			if (loadingJob.cancel()) loadingHandler.sendMessage(loadingHandler.obtainMessage(0, MESSAGE_TYPE_CANCELED, 0, loadingTask));
+			loadingJob = null;
 		}
 
 		data = null;
 		dataStream = null;
+		needsDataFromOutputStream = false;
 		isLoading = false;
 		isLoaded = false;
 	}
@@ -210,6 +317,10 @@ public class TextLoader {
 		onCancelListener = __listener;
 	}
 
+	public void setOnUploadProgressListener(OnTextLoaderUploadProgressListener __listener) {
+		onUploadProgressListener = __listener;
+	}
+
 	// ================================================================================================================
 	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
 
@@ -238,31 +349,85 @@ public class TextLoader {
 	}
 
 	public void setRequestContentStreamWriter(RequestContentStreamWriter __requestContentStreamWriter) {
+		// If set (and there's no request content), POST content is written by __requestContentStreamWriter on the loading
+		// thread, straight to the connection; it's sent as it's written if its length is known, or in chunks otherwise
 		requestContentStreamWriter = __requestContentStreamWriter;
 	}
 
+	public ResponseStreamReader getResponseStreamReader() {
+		return responseStreamReader;
+	}
+
+	public void setResponseStreamReader(ResponseStreamReader __responseStreamReader) {
+		// If set, the (decoded) response is passed to __responseStreamReader as a stream on the loading thread, while it
+		// arrives, instead of being kept in memory; getData() then returns null
+		// Loading fails if the reader throws an IOException
+		responseStreamReader = __responseStreamReader;
+	}
+
 	public String getData() {
+		// Response as text, decoded with getCharset() (or UTF-8)
 		if (needsDataFromOutputStream && dataStream != null) {
-			// Delays getting data until when it's needed, so avoids early memory consumption
-			try {
-				data = dataStream.toString("UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				F.error("Invalid charset used! Duh!");
-				data = "";
-			}
+			// Delays getting data until when it's needed, so avoids early memory consumption; responses only used as bytes
+			// are never decoded
+			data = decode(dataStream.getBuffer(), dataStream.size(), charset);
 			needsDataFromOutputStream = false;
 		}
 		return data;
 	}
 
+	public byte[] getDataBytes() {
+		// Response as received, without decoding it as text; null if not loaded (or read with a ResponseStreamReader)
+		// The array is not copied when its size matches the response, so it shouldn't be modified
+		return dataStream == null ? null : dataStream.getBytes();
+	}
+
+	public InputStream getDataStream() {
+		// Same as getDataBytes(), as a stream, without copying; a new stream is returned every time
+		return dataStream == null ? null : new ByteArrayInputStream(dataStream.getBuffer(), 0, dataStream.size());
+	}
+
+	public String getCharset() {
+		// Charset declared in the Content-Type of the response, or null if it didn't declare one (or if it came from the
+		// cache, which keeps text as UTF-8)
+		return charset;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int __priority) {
+		// One of the DownloadScheduler.PRIORITY_* constants; a load that is still queued is moved to the new priority
+		priority = __priority;
+		if (loadingJob != null) loadingJob.setPriority(__priority);
+	}
+
 	public int getTotalBytes() {
+		// Size of the response as sent by the server (Content-Length), or -1 if not known
 		return totalBytes;
 	}
 
 	public int getLoadedBytes() {
+		// Bytes of the response received so far, comparable to getTotalBytes()
 		return loadedBytes;
 	}
 
+	public int getDecodedBytes() {
+		// Bytes of content received so far; larger than getLoadedBytes() if the server compressed the response
+		return decodedBytes;
+	}
+
+	public int getUploadedBytes() {
+		// Bytes of the request content sent so far
+		return uploadedBytes;
+	}
+
+	public int getUploadTotalBytes() {
+		// Size of the request content, or -1 if it's sent in chunks
+		return uploadTotalBytes;
+	}
+
 	public boolean getIsLoading() {
 		return isLoading;
 	}
@@ -275,6 +440,36 @@ public class TextLoader {
 		return headerLastModified;
 	}
 
+	public int getResponseCode() {
+		// HTTP status of the response, or -1 if there was no response (or it came from the cache without asking the server)
+		return responseCode;
+	}
+
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+
+	public void setFileCache(FileCache __fileCache) {
+		// Cache for GET responses, by URL. Cached responses are reused while fresh (see setCacheMaxAge()), and revalidated
+		// with If-None-Match/If-Modified-Since afterwards, so unchanged content is not downloaded again
+		fileCache = __fileCache;
+	}
+
+	public long getCacheMaxAge() {
+		return cacheMaxAge;
+	}
+
+	public void setCacheMaxAge(long __cacheMaxAge) {
+		// Time a cached response is used without asking the server, in ms, when the server doesn't send a Cache-Control
+		// max-age; 0 (the default) revalidates every time
+		cacheMaxAge = __cacheMaxAge;
+	}
+
+	public boolean getIsFromCache() {
+		// Whether the data came from the file cache (fresh, or confirmed with a 304 response) instead of being downloaded
+		return isFromCache;
+	}
+
 	public void addHeader(String __key, String __value) {
 		// Adds a value to the request header
 		headers.put(__key, __value);
@@ -285,7 +480,12 @@ public class TextLoader {
 	// INTERFACE CLASSES ----------------------------------------------------------------------------------------------
 
 	public interface RequestContentStreamWriter {
-		public void writeToStream(OutputStream __stream);
+		public long getContentLength();			// Bytes that will be written, or -1 if not known
+		public void writeToStream(OutputStream __stream) throws IOException;
+	}
+
+	public interface ResponseStreamReader {
+		public void readFromStream(InputStream __stream, String __charset) throws IOException;	// __charset is null if not declared
 	}
 
 	public interface OnTextLoaderStartListener {
@@ -308,6 +508,10 @@ public class TextLoader {
 		public void onCancel(TextLoader __loader);
 	}
 
+	public interface OnTextLoaderUploadProgressListener {
+		public void onUploadProgress(TextLoader __loader, int __uploadedBytes, int __totalBytes);
+	}
+
 	public interface OnTextLoaderHeaderListener {
 		public void onHeader(TextLoader __loader);
 	}
@@ -315,32 +519,166 @@ public class TextLoader {
 	// ================================================================================================================
 	// HELPER CLASSES -------------------------------------------------------------------------------------------------
 
-	private class LoadingThread extends Thread {
+	private static class UploadOutputStream extends FilterOutputStream {
+
+		// Counts the request content as it's written to the connection, reporting it as upload progress
+
+		private final DownloadScheduler.Job job;
+		private final ProgressThrottle progressThrottle;
+		private int count;
+
+		public UploadOutputStream(OutputStream __output, DownloadScheduler.Job __job, ProgressThrottle __progressThrottle) {
+			super(__output);
+			job = __job;
+			progressThrottle = __progressThrottle;
+			count = 0;
+		}
+
+		@Override
+		public void write(int __byte) throws IOException {
+			if (job.getIsCancelled()) throw new InterruptedIOException("Loading was canceled");
+			out.write(__byte);
+			count++;
+			progressThrottle.setProgress(count, count);
+		}
+
+		@Override
+		public void write(byte[] __buffer, int __offset, int __length) throws IOException {
+			if (job.getIsCancelled()) throw new InterruptedIOException("Loading was canceled");
+			out.write(__buffer, __offset, __length);
+			count += __length;
+			progressThrottle.setProgress(count, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			progressThrottle.flush();
+		}
+	}
+
+	private static class ResponseBuffer extends ByteArrayOutputStream {
+
+		// Keeps the response as bytes, giving access to them without the copy made by toByteArray()
+
+		public ResponseBuffer(int __size) {
+			super(__size);
+		}
+
+		public ResponseBuffer(byte[] __bytes) {
+			super(0);
+			buf = __bytes;
+			count = __bytes.length;
+		}
+
+		public byte[] getBuffer() {
+			// Internal buffer; only the first size() bytes are used
+			return buf;
+		}
+
+		public byte[] getBytes() {
+			// Content, copied only if the buffer is bigger than it
+			return buf.length == count ? buf : toByteArray();
+		}
+	}
+
+	private class LoadingTask implements Runnable {
+
+		// Runs on a DownloadScheduler thread. It only reads the request it was created with, and keeps its results in its
+		// own fields; the handler copies them to the TextLoader if it's still the current task
 
 		// Properties
 		private final Handler handler;
+		private final ProgressThrottle progressThrottle;
+		private final ProgressThrottle uploadProgressThrottle;
+		private DownloadScheduler.Job job;
 		private boolean isLoading;
 		private boolean isLoaded;
+		private volatile boolean isCancelled;			// Set by TextLoader.cancel(), even before the task starts running
+
+		private final String url;
+		private final String method;
+		private final String requestContent;
+		private final String contentType;
+		private final HashMap<String, String> headers;
+		private final RequestContentStreamWriter requestContentStreamWriter;
+		private final ResponseStreamReader responseStreamReader;
+		private final FileCache fileCache;
+		private final long cacheMaxAge;
+
+		// Results, published to the TextLoader on the main thread
+		private ResponseBuffer dataStream;
+		private String charset;
+		private boolean isFromCache;
+		private long headerLastModified;
+		private int responseCode;
+		private volatile int uploadTotalBytes;
 
 		// ================================================================================================================
 		// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
 
-		LoadingThread(Handler h) {
+		LoadingTask(Handler h) {
 			handler = h;
 
-			data = "";
-
 			isLoading = false;
 			isLoaded = false;
+			isCancelled = false;
+
+			url = TextLoader.this.url;
+			method = TextLoader.this.method;
+			requestContent = TextLoader.this.requestContent;
+			contentType = TextLoader.this.contentType;
+			headers = new HashMap<String, String>(TextLoader.this.headers);
+			requestContentStreamWriter = TextLoader.this.requestContentStreamWriter;
+			responseStreamReader = TextLoader.this.responseStreamReader;
+			fileCache = TextLoader.this.fileCache;
+			cacheMaxAge = TextLoader.this.cacheMaxAge;
+
+			dataStream = null;
+			charset = null;
+			isFromCache = false;
+			headerLastModified = 0;
+			responseCode = -1;
+			uploadTotalBytes = 0;
+
+			progressThrottle = new ProgressThrottle(handler) {
+				@Override
+				protected void onProgress(int __loadedBytes, int __decodedBytes) {
+					if (LoadingTask.this != loadingTask || isCancelled) return;
+					TextLoader.this.loadedBytes = __loadedBytes;
+					TextLoader.this.decodedBytes = __decodedBytes;
+					dispatchOnLoadingProgress();
+				}
+			};
+
+			uploadProgressThrottle = new ProgressThrottle(handler) {
+				@Override
+				protected void onProgress(int __uploadedBytes, int __decodedBytes) {
+					if (LoadingTask.this != loadingTask || isCancelled) return;
+					TextLoader.this.uploadedBytes = __uploadedBytes;
+					TextLoader.this.uploadTotalBytes = uploadTotalBytes;
+					dispatchOnUploadProgress();
+				}
+			};
+		}
+
+		public boolean getIsCancelled() {
+			return isCancelled;
 		}
 
 		@Override
 		public void run() {
+			job = DownloadScheduler.getCurrentJob();
+
 			if (!isLoading && !isLoaded) {
 				isLoading = true;
 
 				F.debug("[" + method + "] to " + url + "...");
 
+				// Cached responses are reused without asking the server while they're fresh
+				boolean usesCache = fileCache != null && method.equals(TextLoader.METHOD_GET);
+				if (usesCache && fileCache.getFileIsFresh(url, cacheMaxAge) && terminateFromCache(false)) return;
+
 				URL urlRequest;
 				try {
 					urlRequest = new URL(url);
@@ -353,7 +691,7 @@ public class TextLoader {
 				// Create connection
 				HttpURLConnection connection;
 				try {
-					connection = (HttpURLConnection) urlRequest.openConnection();
+					connection = (HttpURLConnection) ConnectionManager.getConnectionManager().openConnection(urlRequest);
 				} catch (IOException e1) {
 					F.warn("Could not get connection from URL!");
 					terminateInFail();
@@ -370,9 +708,19 @@ public class TextLoader {
 					//it.remove();
 				}
 
+				// Asks the server to only send the content if it's different from the cached version
+				boolean isConditional = false;
+				if (usesCache && fileCache.getFileExists(url)) {
+					String eTag = fileCache.getFileETag(url);
+					String lastModified = fileCache.getFileLastModified(url);
+					if (eTag != null) connection.setRequestProperty("If-None-Match", eTag);
+					if (lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+					isConditional = eTag != null || lastModified != null;
+				}
+
 				// Set other properties
-				connection.setConnectTimeout(3000);
 				connection.setRequestProperty("Accept","*/*");
+				if (!headers.containsKey("Accept-Encoding")) connection.setRequestProperty("Accept-Encoding", DecodingInputStream.ACCEPT_ENCODING);
 				try {
 					connection.setRequestMethod(method);
 				} catch (ProtocolException e1) {
@@ -382,27 +730,40 @@ public class TextLoader {
 				if (method.equals(TextLoader.METHOD_POST)) {
 					// POST
 					connection.setDoOutput(true);
+
+					// The length of the content is set before writing it, so it's sent as it's written instead of being
+					// kept in memory by the connection until it's complete
 					if (requestContent != null && requestContent.length() > 0) {
 						//F.log("ADDING CONTENT AS QUERY == " + requestContent);
-						OutputStream output;
 						try {
-							output = new BufferedOutputStream(connection.getOutputStream());
-							output.write(requestContent.getBytes("UTF-8"));
-							output.flush();
+							byte[] content = requestContent.getBytes("UTF-8");
+							connection.setFixedLengthStreamingMode(content.length);
+							OutputStream output = openUploadStream(connection, content.length);
+							output.write(content);
 							output.close();
 						} catch (IOException e) {
 							F.warn("Could not open output connection for writing request data!");
-							terminateInFail();
+							connection.disconnect();
+							terminateUploadInFail();
 							return;
 						}
 					} else if (requestContentStreamWriter != null) {
 						//F.log("ADDING CONTENT AS OUTPUTSTREAM == " + requestContentStreamWriter);
-						connection.setRequestProperty("Connection", "Keep-Alive");
+						long contentLength = requestContentStreamWriter.getContentLength();
+						if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+							connection.setFixedLengthStreamingMode((int)contentLength);
+						} else {
+							contentLength = -1;
+							connection.setChunkedStreamingMode(0);
+						}
 						try {
-							requestContentStreamWriter.writeToStream(connection.getOutputStream());
+							OutputStream output = openUploadStream(connection, (int)contentLength);
+							requestContentStreamWriter.writeToStream(output);
+							output.close();
 						} catch (IOException e) {
-							F.warn("Could not use requestContentStreamWriter to write to stream!");
-							terminateInFail();
+							F.warn("Could not use requestContentStreamWriter to write to stream! " + e);
+							connection.disconnect();
+							terminateUploadInFail();
 							return;
 						}
 					} else {
@@ -418,6 +779,7 @@ public class TextLoader {
 					connection.connect();
 				} catch (IOException e) {
 					F.warn("Could not open connection!");
+					connection.disconnect();
 					terminateInFail();
 					return;
 				}
@@ -425,12 +787,12 @@ public class TextLoader {
 				//Log.d("TextLoader", "File date is " + new Date(connection.getDate())); // Always the current date
 				//Log.d("TextLoader", "File last modified is " + new Date(connection.getLastModified())); // Correct last modified date
 
-				int l = 0;
 				int t = connection.getContentLength();
 
 				sendMessageForHeader(MESSAGE_TYPE_HEADER_LAST_MODIFIED, connection.getLastModified());
 
 				sendMessage(MESSAGE_TYPE_START, t);
+				progressThrottle.setTotalBytes(t);
 
 				//connection.setRequestProperty("User-Agent","Mozilla/5.0 ( compatible ) ");
 
@@ -439,67 +801,102 @@ public class TextLoader {
 					status = connection.getResponseCode();
 				} catch (IOException e) {
 					F.warn("Could not get connection response code!");
+					connection.disconnect();
+					terminateInFail();
+					return;
+				}
+
+				sendMessageForHeader(MESSAGE_TYPE_HEADER_RESPONSE_CODE, status);
+
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && isConditional) {
+					// The cached response is still current
+					fileCache.setFileValidators(url, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), connection.getHeaderField("Cache-Control"));
+					try {
+						ConnectionManager.getConnectionManager().releaseConnection(connection, connection.getInputStream());
+					} catch (IOException e) {
+						connection.disconnect();
+					}
+					if (terminateFromCache(true)) return;
+
+					F.warn("Cached response was removed before it could be used!");
 					terminateInFail();
 					return;
 				}
 
 				if (status != 200) F.warn("Status not 200! Status: " + status);
 
-				InputStream in;
+				InputStream rawIn;
 				try {
-					in = new BufferedInputStream(connection.getInputStream());
+					rawIn = connection.getInputStream();
 				} catch (IOException e) {
 					F.warn("Error getting normal input stream! Will respond with error stream instead.");
-					in = connection.getErrorStream();
+					rawIn = connection.getErrorStream();
 				}
 
-				if (in == null) {
+				if (rawIn == null) {
 					F.warn("Could not get ANY connection response!");
+					connection.disconnect();
+					terminateInFail();
+					return;
+				}
+
+				// Compressed responses are decoded as they're read
+				DecodingInputStream in;
+				try {
+					in = new DecodingInputStream(rawIn, connection.getContentEncoding());
+				} catch (IOException e) {
+					F.warn("Could not decode response with encoding [" + connection.getContentEncoding() + "]!");
+					connection.disconnect();
 					terminateInFail();
+					return;
 				}
 
-				data = "";
+				charset = getCharset(connection.getContentType());
+
+				if (responseStreamReader != null) {
+					readResponseStream(in, t, job, connection, usesCache && status == HttpURLConnection.HTTP_OK);
+					return;
+				}
 
 				byte buff[] = new byte[1024 * 10];
 				int read = 0;
 
 				//F.log("Attempting to load: " + t + " bytes");
 
-				ByteArrayOutputStream output = new ByteArrayOutputStream(t > 0 ? t : 32); // If not specified, the buffer size of the byte array is doubled as needed, leading to some massive memory consumption
+				ResponseBuffer output = new ResponseBuffer(t > 0 ? t : 32); // If not specified, the buffer size of the byte array is doubled as needed, leading to some massive memory consumption
 
 				// http://stackoverflow.com/questions/3562585/cache-online-file-contents-in-string-rather-than-local-file
 				try {
-					while ((read = in.read(buff)) != -1 && Thread.currentThread() == loadingThread) {
-						l += read;
+					while ((read = in.read(buff)) != -1 && !job.getIsCancelled()) {
 						output.write(buff, 0, read);
-						sendMessage(MESSAGE_TYPE_PROGRESS, Math.min(l, t));
+						progressThrottle.setProgress(t > 0 ? Math.min(in.getWireBytes(), t) : in.getWireBytes(), in.getDecodedBytes());
 					}
+					progressThrottle.flush();
 
 					//F.log("Bytes written to stream: " + output.size());
 
 					output.flush();
 					output.close();
-					in.close();
 
-//					needsDataFromOutputStream = true;
-//					dataStream = output;
-					try {
-						data = output.toString("UTF-8");
-					} catch (UnsupportedEncodingException e) {
-						F.error("Invalid charset used! Duh!");
-						data = "";
-					}
+					// Whatever is left (if cancelled) is skipped, so the connection can be reused
+					ConnectionManager.getConnectionManager().releaseConnection(connection, in);
+
+					// Only decoded as text if getData() is called
+					dataStream = output;
+
+					if (usesCache && status == HttpURLConnection.HTTP_OK && !job.getIsCancelled()) storeInCache(output, connection);
 
 					output = null;
 					in = null;
 
 				} catch (IOException e) {
 					F.warn("Error reading input stream!");
+					connection.disconnect();
 					terminateInFail();
 					return;
 				}
 
-				if (Thread.currentThread() == loadingThread) {
+				if (!job.getIsCancelled()) {
 					F.debug("Loading has finished.");
 
 					isLoading = false;
@@ -517,6 +914,175 @@ public class TextLoader {
 			}
 		}
 
+		protected void readResponseStream(DecodingInputStream __input, int __totalBytes, DownloadScheduler.Job __job, HttpURLConnection __connection, boolean __cachesResponse) {
+			// Passes the response to responseStreamReader as it arrives, also copying it to the cache if needed
+			FileCacheEditor cacheEditor = null;
+			String cacheControl = __connection.getHeaderField("Cache-Control");
+			if (__cachesResponse) {
+				if (getIsNoStore(cacheControl)) {
+					fileCache.deleteFile(url);
+				} else {
+					cacheEditor = fileCache.edit(url, fileCache.getCodecForContent(__connection.getContentType(), __totalBytes < 0 ? Long.MAX_VALUE : __totalBytes));
+				}
+			}
+
+			progressThrottle.setTotalBytes(__totalBytes);
+			ReaderInputStream input = new ReaderInputStream(__input, __connection, __totalBytes, __job, cacheEditor, progressThrottle);
+
+			try {
+				responseStreamReader.readFromStream(input, charset);
+
+				// The rest of the content (if any) still has to be cached
+				if (input.getCacheEditor() != null) input.skipToEnd();
+				input.release();
+			} catch (IOException __e) {
+				if (input.getCacheEditor() != null) input.getCacheEditor().abort();
+				try {
+					input.release();
+				} catch (IOException __f) {
+				}
+
+				isLoading = false;
+				isLoaded = false;
+
+				if (__job.getIsCancelled()) {
+					F.debug("Loading was canceled.");
+					sendMessage(MESSAGE_TYPE_CANCELED);
+				} else {
+					F.warn("Error reading response stream! " + __e);
+					terminateInFail();
+				}
+				return;
+			}
+
+			if (input.getCacheEditor() != null && input.getCacheEditor().commit()) {
+				fileCache.setFileValidators(url, __connection.getHeaderField("ETag"), __connection.getHeaderField("Last-Modified"), cacheControl);
+			}
+
+			isLoading = false;
+
+			if (!__job.getIsCancelled()) {
+				F.debug("Loading has finished.");
+				isLoaded = true;
+				progressThrottle.flush();
+				sendMessage(MESSAGE_TYPE_COMPLETE);
+			} else {
+				F.debug("Loading was canceled.");
+				isLoaded = false;
+				sendMessage(MESSAGE_TYPE_CANCELED);
+			}
+		}
+
+		protected boolean terminateFromCache(boolean __hasStarted) {
+			// Completes the load with the cached response; returns false if it's not in the cache anymore
+			if (responseStreamReader != null) return terminateStreamFromCache(__hasStarted);
+
+			ByteBuffer cachedBuffer = fileCache.getFileAsByteBuffer(url);
+			if (cachedBuffer == null) return false;
+
+			F.debug("Using cached response.");
+
+			byte[] cachedData = new byte[cachedBuffer.remaining()];
+			cachedBuffer.get(cachedData);
+			FileCache.releaseByteBuffer(cachedBuffer);
+
+			// Cached text is kept as UTF-8
+			charset = null;
+			dataStream = new ResponseBuffer(cachedData);
+			isFromCache = true;
+
+			isLoading = false;
+			isLoaded = true;
+
+			if (!__hasStarted) sendMessage(MESSAGE_TYPE_START, cachedData.length);
+			progressThrottle.setProgress(cachedData.length, cachedData.length);
+			progressThrottle.flush();
+			sendMessage(MESSAGE_TYPE_COMPLETE);
+			return true;
+		}
+
+		protected boolean terminateStreamFromCache(boolean __hasStarted) {
+			// Same as terminateFromCache(), passing the cached response to responseStreamReader
+			InputStream cachedInput = fileCache.getFileAsStream(url);
+			if (cachedInput == null) return false;
+
+			F.debug("Using cached response.");
+
+			charset = null;
+			isFromCache = true;
+
+			if (!__hasStarted) sendMessage(MESSAGE_TYPE_START, -1);
+
+			ReaderInputStream input = new ReaderInputStream(cachedInput, null, -1, job, null, progressThrottle);
+			try {
+				responseStreamReader.readFromStream(input, null);
+				input.release();
+			} catch (IOException __e) {
+				try {
+					input.release();
+				} catch (IOException __f) {
+				}
+
+				F.warn("Error reading cached response stream! " + __e);
+				terminateInFail();
+				return true;
+			}
+
+			isLoading = false;
+			isLoaded = true;
+
+			progressThrottle.flush();
+			sendMessage(MESSAGE_TYPE_COMPLETE);
+			return true;
+		}
+
+		protected boolean getIsNoStore(String __cacheControl) {
+			return __cacheControl != null && __cacheControl.toLowerCase(Locale.US).contains("no-store");
+		}
+
+		protected void storeInCache(ResponseBuffer __content, HttpURLConnection __connection) {
+			// Keeps a response in the cache with its validators, unless the server doesn't allow it
+			String cacheControl = __connection.getHeaderField("Cache-Control");
+			if (getIsNoStore(cacheControl)) {
+				fileCache.deleteFile(url);
+				return;
+			}
+
+			// The cache keeps text as UTF-8, since it doesn't know the charset of its files
+			byte[] content = __content.getBytes();
+			if (charset != null && !charset.equalsIgnoreCase(DEFAULT_CHARSET)) {
+				try {
+					content = decode(__content.getBuffer(), __content.size(), charset).getBytes(DEFAULT_CHARSET);
+				} catch (UnsupportedEncodingException e) {
+					F.error("Invalid charset used! Duh!");
+					return;
+				}
+			}
+
+			fileCache.putFile(url, content, __connection.getContentType());
+			fileCache.setFileValidators(url, __connection.getHeaderField("ETag"), __connection.getHeaderField("Last-Modified"), cacheControl);
+		}
+
+		protected OutputStream openUploadStream(HttpURLConnection __connection, int __contentLength) throws IOException {
+			// Stream for the request content, reporting upload progress as it's written
+			uploadTotalBytes = __contentLength;
+			uploadProgressThrottle.setTotalBytes(__contentLength);
+			return new UploadOutputStream(new BufferedOutputStream(__connection.getOutputStream()), job, uploadProgressThrottle);
+		}
+
+		protected void terminateUploadInFail() {
+			// Same as terminateInFail(), unless it failed because it was cancelled
+			if (!job.getIsCancelled()) {
+				terminateInFail();
+				return;
+			}
+
+			F.debug("Loading was canceled.");
+			isLoading = false;
+			isLoaded = false;
+			sendMessage(MESSAGE_TYPE_CANCELED);
+		}
+
 		protected void terminateInFail() {
 			F.warn("Failed. Returning error result.");
 			isLoading = false;
@@ -526,10 +1092,19 @@ public class TextLoader {
 		}
 
 		protected void sendMessageForHeader(int __type, long __long) {
+			// The value is kept in the task, since messages can only carry it as an object
+			switch (__type) {
+				case MESSAGE_TYPE_HEADER_LAST_MODIFIED:
+					headerLastModified = __long;
+					break;
+				case MESSAGE_TYPE_HEADER_RESPONSE_CODE:
+					responseCode = (int)__long;
+					break;
+			}
 			Message msg = handler.obtainMessage();
 			msg.arg1 = MESSAGE_TYPE_HEADER;
 			msg.arg2 = __type;
-			msg.obj = __long;
+			msg.obj = this;
 			handler.sendMessage(msg);
 		}
 
@@ -541,7 +1116,128 @@ public class TextLoader {
 			Message msg = handler.obtainMessage();
 			msg.arg1 = __type;
 			msg.arg2 = __params;
+			msg.obj = this;
 			handler.sendMessage(msg);
 		}
 	}
+
+	private class ReaderInputStream extends FilterInputStream {
+
+		// Response stream given to a ResponseStreamReader; reports progress and copies the content to the cache as it's
+		// read, and stops (with an InterruptedIOException) once the load is cancelled
+
+		// Properties
+		private final HttpURLConnection connection;			// Null if not reading from the network
+		private final int totalBytes;
+		private final DownloadScheduler.Job job;
+		private final DecodingInputStream decodingInput;	// Null if not reading from the network
+		private final ProgressThrottle progressThrottle;
+		private FileCacheEditor cacheEditor;
+		private OutputStream cacheOutput;
+		private int readBytes;
+		private final byte[] singleByte;
+
+		// ================================================================================================================
+		// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
+
+		ReaderInputStream(InputStream __input, HttpURLConnection __connection, int __totalBytes, DownloadScheduler.Job __job, FileCacheEditor __cacheEditor, ProgressThrottle __progressThrottle) {
+			super(__input);
+			progressThrottle = __progressThrottle;
+			connection = __connection;
+			totalBytes = __totalBytes;
+			job = __job;
+			decodingInput = __input instanceof DecodingInputStream ? (DecodingInputStream)__input : null;
+			cacheEditor = __cacheEditor;
+			cacheOutput = __cacheEditor == null ? null : __cacheEditor.getOutputStream();
+			if (cacheOutput == null) cacheEditor = null;
+			readBytes = 0;
+			singleByte = new byte[1];
+		}
+
+		// ================================================================================================================
+		// INTERNAL INTERFACE ---------------------------------------------------------------------------------------------
+
+		private void checkCancelled() throws InterruptedIOException {
+			if (job != null && job.getIsCancelled()) throw new InterruptedIOException("Loading was canceled");
+		}
+
+		private void onRead(byte[] __buffer, int __offset, int __length) {
+			readBytes += __length;
+
+			if (cacheOutput != null) {
+				try {
+					cacheOutput.write(__buffer, __offset, __length);
+				} catch (IOException __e) {
+					F.warn("Could not write response to the cache! " + __e);
+					cacheEditor.abort();
+					cacheEditor = null;
+					cacheOutput = null;
+				}
+			}
+
+			int loaded = decodingInput == null ? readBytes : decodingInput.getWireBytes();
+			int decoded = decodingInput == null ? readBytes : decodingInput.getDecodedBytes();
+			progressThrottle.setProgress(totalBytes > 0 ? Math.min(loaded, totalBytes) : loaded, decoded);
+		}
+
+		// ================================================================================================================
+		// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
+
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			int value = in.read();
+			if (value != -1) {
+				singleByte[0] = (byte)value;
+				onRead(singleByte, 0, 1);
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] __buffer, int __offset, int __length) throws IOException {
+			checkCancelled();
+			int read = in.read(__buffer, __offset, __length);
+			if (read > 0) onRead(__buffer, __offset, read);
+			return read;
+		}
+
+		@Override
+		public long skip(long __length) throws IOException {
+			// Skipped content is read, so it's still cached
+			if (__length <= 0) return 0;
+			byte[] buffer = new byte[(int)Math.min(__length, 8192)];
+			int read = read(buffer, 0, buffer.length);
+			return read < 0 ? 0 : read;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// Readers (like SAX parsers) may close the stream when they're done; the loader still needs to read the rest of
+			// the content to cache it, so the actual stream is only closed with release()
+		}
+
+		public void release() throws IOException {
+			// Closes the actual stream; connections are drained first, so they can be reused
+			if (connection != null) {
+				ConnectionManager.getConnectionManager().releaseConnection(connection, in);
+			} else {
+				in.close();
+			}
+		}
+
+		public void skipToEnd() throws IOException {
+			byte[] buffer = new byte[8192];
+			while (read(buffer, 0, buffer.length) != -1) {}
+		}
+
+		public FileCacheEditor getCacheEditor() {
+			return cacheEditor;
+		}
+	}
 }
@@ -1,6 +1,19 @@
 package com.zehfernando.net.loaders;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
 import com.zehfernando.data.xml.XML;
+import com.zehfernando.data.xml.XMLErrorHandler;
+import com.zehfernando.data.xml.XMLParseHandler;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderCompleteListener;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderErrorListener;
 import com.zehfernando.net.loaders.TextLoader.OnTextLoaderProgressListener;
@@ -8,8 +21,20 @@ import com.zehfernando.net.loaders.TextLoader.OnTextLoaderStartListener;
 
 public class XMLLoader {
 
+	/*
+	Loads and parses an XML file.
+
+	By default the content is parsed on the loading thread while it arrives, so it's never kept as a String, and the
+	result is ready when loading completes. With setContentHandler(), the parse events go straight to a handler instead
+	of building an XML tree, so items can be used before the whole file has arrived.
+	*/
+
 	// Properties
 	private TextLoader textLoader;
+	private boolean parsesWhileLoading;				// If false, the content is loaded as bytes, and parsed on the first getData()
+	private ContentHandler contentHandler;			// If set, receives the parse events and no XML tree is built
+	private ParsingStreamReader parsingStreamReader;	// Parser of the current load, if parsing while loading
+	private XML data;								// Parsed content, if not parsing while loading
 	private OnXMLLoaderStartListener onStartListener;
 	private OnXMLLoaderErrorListener onErrorListener;
 	private OnXMLLoaderProgressListener onProgressListener;
@@ -20,6 +45,11 @@ public class XMLLoader {
 	// CONSTRUCTOR ----------------------------------------------------------------------------------------------------
 
 	public XMLLoader() {
+		parsesWhileLoading = true;
+		contentHandler = null;
+		parsingStreamReader = null;
+		data = null;
+
 		textLoader = new TextLoader();
 		textLoader.setOnLoadingStartListener(new OnTextLoaderStartListener() {
 			@Override
@@ -84,6 +114,9 @@ public class XMLLoader {
 	// PUBLIC INTERFACE -----------------------------------------------------------------------------------------------
 
 	public void load(String __url) {
+		data = null;
+		parsingStreamReader = parsesWhileLoading || contentHandler != null ? new ParsingStreamReader(contentHandler) : null;
+		textLoader.setResponseStreamReader(parsingStreamReader);
 		textLoader.load(__url);
 	}
 
@@ -116,7 +149,29 @@ public class XMLLoader {
 	// ACCESSOR INTERFACE ---------------------------------------------------------------------------------------------
 
 	public XML getData() {
-		return new XML(textLoader.getData());
+		// Parsed content; null if using a content handler, or if parsing failed
+		if (parsingStreamReader != null) return parsingStreamReader.getData();
+		if (data == null && textLoader.getIsLoaded()) data = new XML(textLoader.getDataStream(), textLoader.getCharset());
+		return data;
+	}
+
+	public boolean getParsesWhileLoading() {
+		return parsesWhileLoading;
+	}
+
+	public void setParsesWhileLoading(boolean __parsesWhileLoading) {
+		// If false, the whole content is loaded first, and only parsed (from its bytes) when getData() is first called
+		parsesWhileLoading = __parsesWhileLoading;
+	}
+
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	public void setContentHandler(ContentHandler __contentHandler) {
+		// Handler that receives the parse events on the loading thread, as the content arrives; no XML tree is built, and
+		// getData() returns null
+		contentHandler = __contentHandler;
 	}
 
 	public int getTotalBytes() {
@@ -127,6 +182,15 @@ public class XMLLoader {
 		return textLoader.getLoadedBytes();
 	}
 
+	public int getDecodedBytes() {
+		return textLoader.getDecodedBytes();
+	}
+
+	public TextLoader getTextLoader() {
+		// Loader used for the content, for setting its headers, cache, etc
+		return textLoader;
+	}
+
 	public boolean getIsLoading() {
 		return textLoader.getIsLoading();
 	}
@@ -161,4 +225,52 @@ public class XMLLoader {
 	public interface OnXMLLoaderCancelListener {
 		public void onCancel(XMLLoader __loader);
 	}
+
+	// ================================================================================================================
+	// AUXILIARY CLASSES ----------------------------------------------------------------------------------------------
+
+	private static class ParsingStreamReader implements TextLoader.ResponseStreamReader {
+
+		// Parses the content on the loading thread, as it arrives
+
+		// Properties
+		private final ContentHandler contentHandler;
+		private volatile XML data;
+
+		public ParsingStreamReader(ContentHandler __contentHandler) {
+			contentHandler = __contentHandler;
+			data = null;
+		}
+
+		@Override
+		public void readFromStream(InputStream __stream, String __charset) throws IOException {
+			ContentHandler handler = contentHandler;
+			XML xml = null;
+			if (handler == null) {
+				xml = new XML();
+				handler = new XMLParseHandler(xml);
+			}
+
+			try {
+				XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+				reader.setContentHandler(handler);
+				reader.setErrorHandler(new XMLErrorHandler());
+				// A charset sent by the server takes precedence over the XML declaration (RFC 3023); without one, the
+				// parser detects it
+				InputSource source = new InputSource(__stream);
+				if (__charset != null) source.setEncoding(__charset);
+				reader.parse(source);
+			} catch (ParserConfigurationException __e) {
+				throw new IOException("Could not create XML parser: " + __e);
+			} catch (SAXException __e) {
+				throw new IOException("Error parsing the XML: " + __e);
+			}
+
+			data = xml;
+		}
+
+		public XML getData() {
+			return data;
+		}
+	}
 }